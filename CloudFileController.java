@@ -1,8 +1,15 @@
 package com.jravity.auditadmin.controller;
 
 import com.alibaba.excel.util.StringUtils;
+import com.jravity.auditadmin.executor.CloudFileIoExecutor;
+import com.jravity.auditadmin.metrics.CloudFileMetrics;
+import com.jravity.auditadmin.metrics.CloudFileMetrics.RangeType;
 import com.jravity.auditadmin.service.CloudFileService;
 import com.jravity.auditadmin.service.SyncDataService;
+import com.jravity.auditadmin.service.impl.CloudFileUsageLedger;
+import com.jravity.auditadmin.service.impl.MergeProgressRegistry;
+import com.jravity.auditadmin.util.file.FrameCompressedFile;
+import com.jravity.auditadmin.util.file.MerkleIndex;
 import com.jravity.utils.model.ResponseBean;
 import com.jravity.utils.model.req.FileMultipartyInfoReq;
 import com.jravity.utils.model.req.MergeFileReq;
@@ -15,6 +22,7 @@ import org.springframework.web.multipart.MultipartFile;
 import reactor.core.publisher.Mono;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.IOException;
@@ -23,13 +31,15 @@ import java.io.RandomAccessFile;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
+
+import static com.jravity.auditadmin.util.file.AdminFileUtil.TEMP_DIR;
 
 /**
  * 云盘文件上传
@@ -46,35 +56,31 @@ import java.util.Objects;
 @RequestMapping("/cloudFile")
 public class CloudFileController {
 
+    /**
+     * 一个Range请求头最多允许的分段数
+     */
+    private static final int MAX_RANGE_PARTS = 16;
+    /**
+     * 所有分段长度之和最多可以超出文件长度的字节数，限制重叠分段造成的重复读取
+     */
+    private static final long MAX_RANGE_OVERLAP = 1024 * 1024;
+    /**
+     * 边合并边下载时，等待下一段内容合并完成的最长时间
+     */
+    private static final long PROGRESSIVE_WAIT_MILLIS = 60 * 1000L;
+
     private CloudFileService cloudFileService;
     private SyncDataService syncDataServiceImpl;
+    private CloudFileMetrics cloudFileMetrics;
+    private CloudFileUsageLedger cloudFileUsageLedger;
+    private MergeProgressRegistry mergeProgressRegistry;
+    private CloudFileIoExecutor cloudFileIoExecutor;
 
-    private static class Range {
-        long start;
-        long end;
-        long length;
-        long total;
-
-        /**
-         * Range段构造方法.
-         *
-         * @param start range起始位置.
-         * @param end   range结束位置.
-         * @param total range段的长度.
-         */
-        public Range(long start, long end, long total) {
-            this.start = start;
-            this.end = end;
-            this.length = end - start + 1;
-            this.total = total;
-        }
-
-        public static long sublong(String value, int beginIndex, int endIndex) {
-            String substring = value.substring(beginIndex, endIndex);
-            return (substring.length() > 0) ? Long.parseLong(substring) : -1;
-        }
-
-        private static void copy(RandomAccessFile randomAccessFile, OutputStream output, long fileSize, long start, long length) throws IOException {
+    /**
+     * Range段拷贝.
+     */
+    static class Range {
+        static void copy(RandomAccessFile randomAccessFile, OutputStream output, long fileSize, long start, long length) throws IOException {
             byte[] buffer = new byte[4096];
             int read = 0;
             long transmitted = 0;
@@ -112,22 +118,65 @@ public class CloudFileController {
 
             }
         }
+    }
+
+    /**
+     * 可以按Range读取的文件内容，原始文件和分帧压缩文件各有一种实现
+     */
+    @FunctionalInterface
+    private interface RangeSource {
+        void copy(OutputStream output, long start, long length) throws IOException;
+    }
+
+    /**
+     * 统计写出字节数和首字节时间的输出流，用于下载指标
+     */
+    private static class MeteredOutputStream extends ServletOutputStream {
+        private final ServletOutputStream delegate;
+        private long firstByteNanos = -1;
+        private long written;
+
+        MeteredOutputStream(ServletOutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        private void onWrite(int len) {
+            if (firstByteNanos < 0 && len > 0) {
+                firstByteNanos = System.nanoTime();
+            }
+            written += len;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+            onWrite(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            onWrite(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
 
         @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Range range = (Range) o;
-            return start == range.start &&
-                    end == range.end &&
-                    length == range.length &&
-                    total == range.total;
+        public boolean isReady() {
+            return delegate.isReady();
         }
 
         @Override
-        public int hashCode() {
-            final int prime = 31;
-            return Objects.hash(prime, start, end, length, total);
+        public void setWriteListener(WriteListener writeListener) {
+            delegate.setWriteListener(writeListener);
         }
     }
 
@@ -141,24 +190,63 @@ public class CloudFileController {
      * @date 2021/1/17
      */
     @GetMapping(value = "/downloadFile")
-    public void downloadFile(@RequestParam("fileId") String fileId, @RequestParam(name = "filePath",
+    public Mono<Void> downloadFile(@RequestParam("fileId") String fileId, @RequestParam(name = "filePath",
             required = false) String filePath, HttpServletResponse response,
                              @RequestHeader(name = "Range", required = false) String range) {
+        return cloudFileIoExecutor.download(() -> {
+            doDownloadFile(fileId, filePath, response, range);
+            return null;
+        });
+    }
 
+    private void doDownloadFile(String fileId, String filePath, HttpServletResponse response, String range) {
+        final long begin = System.nanoTime();
         List<FileInfo> fileInfo= fileMapper.getFileById(fileId);
         if(null == fileInfo){
             throw new RuntimeException("下载失败，未找到需要下载的文件");
         }
         filePath = StringUtils.isNotBlank(filePath) ? filePath : fileInfo.getFilePath();
+        sendFile(filePath, response, range, begin);
+    }
 
+    /**
+     * 查看压缩存储的文件，开启压缩存储时 mergeFile 返回这个接口的地址代替 viewFileBaseAddress 的地址
+     * path 是 TEMP_DIR 下的相对路径，只能读取磁盘上有对应 .cfz 文件的文件，读取时按 Range 解压原始内容
+     */
+    @GetMapping(value = "/viewFile")
+    public Mono<Void> viewFile(@RequestParam("path") String path, HttpServletResponse response,
+                               @RequestHeader(name = "Range", required = false) String range) throws IOException {
+        final Path root = Paths.get(TEMP_DIR).toAbsolutePath().normalize();
+        final Path file = root.resolve(path).normalize();
+        if (!file.startsWith(root) || !new File(file + FrameCompressedFile.SUFFIX).isFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return Mono.empty();
+        }
+        final long begin = System.nanoTime();
+        return cloudFileIoExecutor.download(() -> {
+            sendFile(file.toString(), response, range, begin);
+            return null;
+        });
+    }
+
+    private void sendFile(String filePath, HttpServletResponse response, String range, long begin) {
         File file = new File(filePath);
         String filename = file.getName();
-        long length = file.length();
-        Range full = new Range(0, length - 1, length);
-        List<Range> ranges = new ArrayList<>();
+        // 开启压缩存储后，磁盘上只有压缩后的文件
+        File compressedFile = new File(filePath + FrameCompressedFile.SUFFIX);
+        boolean compressed = !file.exists() && compressedFile.isFile();
+        File storedFile = compressed ? compressedFile : file;
+        long length;
+        try {
+            length = compressed ? FrameCompressedFile.rawLength(storedFile) : file.length();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("文件下载异常：" + e.getMessage());
+        }
+        long[] ranges;
         //处理Range
         try {
-            if (!file.exists()) {
+            if (!storedFile.exists()) {
                 String msg = "需要下载的文件不存在：" + file.getAbsolutePath();
                 log.error(msg);
                 throw new RuntimeException(msg);
@@ -169,19 +257,36 @@ public class CloudFileController {
                 log.error(msg);
                 throw new RuntimeException("ResponseState.REQUEST_ERROR.getCode(), msg");
             }
-            dealRanges(full, range, ranges, response, length);
+            ranges = dealRanges(range, response, length);
         }catch (IOException e){
             e.printStackTrace();
             throw new RuntimeException("文件下载异常：" + e.getMessage());
         }
+        if (ranges != null && ranges.length == 0) {
+            // 已经返回416
+            return;
+        }
         // 如果浏览器支持内容类型，则设置为“内联”，否则将弹出“另存为”对话框. attachment inline
         String disposition = "attachment";
 
         // 将需要下载的文件段发送到客服端，准备流.
-        try (RandomAccessFile input = new RandomAccessFile(file, "r");
-             ServletOutputStream output = response.getOutputStream()) {
+        try (RandomAccessFile input = new RandomAccessFile(storedFile, "r");
+             FrameCompressedFile frames = compressed ? FrameCompressedFile.open(input) : null;
+             MeteredOutputStream output = new MeteredOutputStream(response.getOutputStream())) {
+            // 压缩文件只解压覆盖Range的帧
+            RangeSource source = compressed ? frames::copy
+                    : (out, start, len) -> Range.copy(input, out, length, start, len);
+            // 有完整性索引时，只校验实际下载的块
+            MerkleIndex merkle = loadMerkleIndex(file);
+            if (merkle != null) {
+                MerkleIndex.BlockReader reader = compressed ? frames::read : (position, buffer, len) -> {
+                    input.seek(position);
+                    input.readFully(buffer, 0, len);
+                };
+                source = merkle.open(reader)::copy;
+            }
             //最后修改时间
-            FileTime lastModifiedObj = Files.getLastModifiedTime(file.toPath());
+            FileTime lastModifiedObj = Files.getLastModifiedTime(storedFile.toPath());
             long lastModified = LocalDateTime.ofInstant(lastModifiedObj.toInstant(),
                     ZoneId.of(ZoneId.systemDefault().getId())).toEpochSecond(ZoneOffset.UTC);
             //初始化response.
@@ -195,113 +300,159 @@ public class CloudFileController {
             response.setDateHeader("Last-Modified", lastModified);
             response.setDateHeader("Expires", System.currentTimeMillis() + 604800000L);
             //输出Range到response
-            outputRange(response, ranges, input, output, full, length);
+            outputRange(response, ranges, source, output, length);
             output.flush();
             response.flushBuffer();
+            long firstByte = output.firstByteNanos < 0 ? -1 : output.firstByteNanos - begin;
+            cloudFileMetrics.recordDownload(rangeType(ranges), firstByte,
+                    System.nanoTime() - begin, output.written);
         }catch (Exception e){
             e.printStackTrace();
             throw new RuntimeException("文件下载异常：" + e.getMessage());
         }
     }
 
+    /**
+     * 边合并边下载，供流水线模式下的语音识别读取正在合并的文件
+     * 读到还没合并的位置时阻塞等待，直到合并完成或者超时；token 由 MergeProgressRegistry 签名，
+     * 不需要 sign-check，签名不对或者文件已经不在时返回 404
+     */
+    @GetMapping(value = "/progressiveFile")
+    public void progressiveFile(@RequestParam("token") String token, HttpServletResponse response) throws IOException {
+        MergeProgressRegistry.Progress progress = mergeProgressRegistry.get(token);
+        if (progress == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final long total = progress.getTotal();
+        response.setHeader("Content-type", "application/octet-stream;charset=UTF-8");
+        response.setHeader("Content-length", String.valueOf(total));
+        response.setStatus(HttpServletResponse.SC_OK);
+        try (RandomAccessFile input = new RandomAccessFile(progress.getFile(), "r");
+             ServletOutputStream output = response.getOutputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            long position = 0;
+            while (position < total) {
+                long available = progress.awaitBeyond(position, PROGRESSIVE_WAIT_MILLIS);
+                input.seek(position);
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, available - position));
+                if (read < 0) {
+                    throw new IOException("文件读取结束，" + progress.getFile().getPath());
+                }
+                output.write(buffer, 0, read);
+                position += read;
+                // 已合并的内容立即发给识别服务
+                if (position == available) {
+                    output.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("边合并边下载被中断", e);
+        }
+    }
+
     /**
      * 处理请求中的Range(多个range或者一个range，每个range范围)
      * @author kevin
      * @param range :
-     * @param ranges :
      * @param response :
      * @param length :
+     * @return 未传入Range时返回null，下载整个文件；Range无效时返回416并返回空数组；
+     * 否则返回每个分段的起止位置 [start0, end0, start1, end1, ...]
      * @date 2021/1/17
      */
-    private void dealRanges(Range full, String range, List<Range> ranges, HttpServletResponse response,
-                            long length) throws IOException {
-        if (range != null) {
-            // Range 头的格式必须为 "bytes=n-n,n-n,n-n...". 如果不是此格式, 返回 416.
-            if (!range.matches("^bytes=\\d*-\\d*(,\\d*-\\d*)*$")) {
-                response.setHeader("Content-Range", "bytes */" + length);
-                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
-                return;
-            }
-
-            // 处理传入的range的每一段.
-            for (String part : range.substring(6).split(",")) {
-                part = part.split("/")[0];
-                // 对于长度为100的文件，以下示例返回:
-                // 50-80 (50 to 80), 40- (40 to length=100), -20 (length-20=80 to length=100).
-                int delimiterIndex = part.indexOf("-");
-                long start = Range.sublong(part, 0, delimiterIndex);
-                long end = Range.sublong(part, delimiterIndex + 1, part.length());
-
-                //如果未设置起始点，则计算的是最后的 end 个字节；设置起始点为 length-end，结束点为length-1
-                //如果未设置结束点，或者结束点设置的比总长度大，则设置结束点为length-1
-                if (start == -1) {
-                    start = length - end;
-                    end = length - 1;
-                } else if (end == -1 || end > length - 1) {
-                    end = length - 1;
-                }
-
-                // 检查Range范围是否有效。如果无效，则返回416.
-                if (start > end) {
-                    response.setHeader("Content-Range", "bytes */" + length);
-                    response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
-                    return;
-                }
-                // 添加Range范围.
-                ranges.add(new Range(start, end, end - start + 1));
-            }
-        }else{
+    private long[] dealRanges(String range, HttpServletResponse response, long length) throws IOException {
+        if (range == null) {
             //如果未传入Range，默认下载整个文件
-            ranges.add(full);
+            return null;
+        }
+        // Range 头的格式必须为 "bytes=n-n,n-n,n-n...". 如果不是此格式、范围无效或者分段过多, 返回 416.
+        long[] ranges = RangeHeaderParser.parse(range, length, MAX_RANGE_PARTS, MAX_RANGE_OVERLAP);
+        if (ranges == null) {
+            log.warn("Range无效或超出限制，文件长度：{}，Range：{}", length,
+                    range.length() > 200 ? range.substring(0, 200) + "..." : range);
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return new long[0];
         }
+        return ranges;
     }
 
 
 
+    /**
+     * 读取文件的完整性索引，没有索引或者索引损坏时返回null，按不校验处理
+     */
+    private MerkleIndex loadMerkleIndex(File file) {
+        File indexFile = MerkleIndex.indexFile(file);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try {
+            return MerkleIndex.read(indexFile);
+        } catch (IOException e) {
+            log.error("读取文件完整性索引失败，不校验直接下载：{}", indexFile.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 与outputRange的分支保持一致：整个文件、单个分段、多个分段
+     */
+    private RangeType rangeType(long[] ranges) {
+        if (ranges == null) {
+            return RangeType.FULL;
+        }
+        return ranges.length == 2 ? RangeType.SINGLE : RangeType.MULTI;
+    }
+
     /**
      * output写流输出到response
      * @author kevin
      * @param response :
      * @param ranges :
-     * @param input :
+     * @param source :
      * @param output :
-     * @param full :
      * @param length :
      * @date 2021/1/17
      */
-    private void outputRange(HttpServletResponse response, List<Range> ranges, RandomAccessFile input,
-                             ServletOutputStream output, Range full, long length) throws IOException {
-        if (ranges.isEmpty() || ranges.get(0) == full) {
+    private void outputRange(HttpServletResponse response, long[] ranges, RangeSource source,
+                             ServletOutputStream output, long length) throws IOException {
+        if (ranges == null) {
             // 返回整个文件.
             response.setContentType("application/octet-stream;charset=UTF-8");
-            response.setHeader("Content-Range", "bytes " + full.start + "-" + full.end + "/" + full.total);
-            response.setHeader("Content-length", String.valueOf(full.length));
+            response.setHeader("Content-Range", "bytes 0-" + (length - 1) + "/" + length);
+            response.setHeader("Content-length", String.valueOf(length));
             response.setStatus(HttpServletResponse.SC_OK); // 200.
-            Range.copy(input, output, length, full.start, full.length);
-        } else if (ranges.size() == 1) {
+            source.copy(output, 0, length);
+        } else if (ranges.length == 2) {
             // 返回文件的一个分段.
-            Range r = ranges.get(0);
+            long start = ranges[0];
+            long end = ranges[1];
             response.setContentType("application/octet-stream;charset=UTF-8");
-            response.setHeader("Content-Range", "bytes " + r.start + "-" + r.end + "/" + r.total);
-            response.setHeader("Content-length", String.valueOf(r.length));
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            response.setHeader("Content-length", String.valueOf(end - start + 1));
             response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
             // 复制单个文件分段.
-            Range.copy(input, output, length, r.start, r.length);
+            source.copy(output, start, end - start + 1);
         } else {
             // 返回文件的多个分段.
             response.setContentType("multipart/byteranges; boundary=MULTIPART_BYTERANGES");
             response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
 
             // 复制多个文件分段.
-            for (Range r : ranges) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                long start = ranges[i];
+                long end = ranges[i + 1];
                 //为每个Range添加MULTIPART边界和标题字段
                 output.println();
                 output.println("--MULTIPART_BYTERANGES");
                 output.println("Content-Type: application/octet-stream;charset=UTF-8");
-                output.println("Content-length: " + r.length);
-                output.println("Content-Range: bytes " + r.start + "-" + r.end + "/" + r.total);
+                output.println("Content-length: " + (end - start + 1));
+                output.println("Content-Range: bytes " + start + "-" + end + "/" + length);
                 // 复制多个需要复制的文件分段当中的一个分段.
-                Range.copy(input, output, length, r.start, r.length);
+                source.copy(output, start, end - start + 1);
             }
 
             // 以MULTIPART文件的边界结束.
@@ -324,7 +475,7 @@ public class CloudFileController {
         }
 
         req.setChunk(file);
-        return Mono.just(ResponseBean.success(cloudFileService.fileUploadMultiparty(req)));
+        return cloudFileIoExecutor.upload(() -> ResponseBean.success(cloudFileService.fileUploadMultiparty(req)));
     }
 
     /**
@@ -340,6 +491,24 @@ public class CloudFileController {
         return Mono.just(ResponseBean.success(cloudFileService.verify(req)));
     }
 
+    /**
+     * 查询磁盘占用(字节)，不传fileType时返回该sysCode下所有类型的总占用
+     */
+    @GetMapping(value = "usage")
+    public Mono<ResponseBean<Long>> usage(@RequestHeader("sign-check") String check, @RequestParam("sysCode") String sysCode,
+                                          @RequestParam(name = "fileType", required = false) String fileType) {
+        Boolean checkFlag = syncDataServiceImpl.signCheck(check, sysCode);
+        if (!checkFlag) {
+            return Mono.just(new ResponseBean<>(HttpStatus.UNAUTHORIZED.value(), false, "签名错误", null));
+        }
+        long usage = StringUtils.isNotBlank(fileType) ? cloudFileUsageLedger.usage(fileType, sysCode)
+                : cloudFileUsageLedger.usage(sysCode);
+        if (usage == CloudFileUsageLedger.UNKNOWN) {
+            return Mono.just(new ResponseBean<>(HttpStatus.SERVICE_UNAVAILABLE.value(), false, "磁盘占用统计中，请稍后再试", null));
+        }
+        return Mono.just(ResponseBean.success(usage));
+    }
+
     /**
      * 合并分片文件，返回合并后的文件url
      */
@@ -351,12 +520,11 @@ public class CloudFileController {
             return Mono.just(new ResponseBean<>(HttpStatus.UNAUTHORIZED.value(), false, "签名错误", null));
         }
 
-        try {
-            return Mono.just(ResponseBean.success(cloudFileService.mergeFile(req)));
-        } catch (Exception e) {
-            log.error("合并分片文件异常，请求信息{}", req, e);
-            return Mono.just(ResponseBean.failed(500, e.getLocalizedMessage()));
-        }
+        return cloudFileIoExecutor.merge(() -> ResponseBean.success(cloudFileService.mergeFile(req)))
+                .onErrorResume(e -> {
+                    log.error("合并分片文件异常，请求信息{}", req, e);
+                    return Mono.just(ResponseBean.failed(500, e.getLocalizedMessage()));
+                });
 
     }
 }
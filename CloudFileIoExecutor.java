@@ -0,0 +1,114 @@
+package com.jravity.auditadmin.executor;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 分片上传、合并、下载这些阻塞文件读写的执行器
+ * CALLER 在请求线程上直接执行(原来的行为)，PLATFORM 交给固定大小的线程池，VIRTUAL 每个请求一个虚拟线程；
+ * 不管哪种模式，真正读写磁盘前都要先拿到对应的信号量，并发读写磁盘的请求数由信号量而不是线程数决定。
+ * 下载的许可在整个响应写完前不释放，慢客户端也会占用许可，所以下载的并发数单独配置，通常比上传大得多
+ */
+@Slf4j
+@Component
+public class CloudFileIoExecutor {
+
+    public enum Mode {
+        CALLER, PLATFORM, VIRTUAL
+    }
+
+    private final Mode mode;
+    private final Semaphore uploadPermits;
+    private final Semaphore mergePermits;
+    private final Semaphore downloadPermits;
+    private final ExecutorService executorService;
+    private final Scheduler scheduler;
+
+    public CloudFileIoExecutor(@Value("${cloud-file.io.mode:CALLER}") Mode mode,
+                               @Value("${cloud-file.io.platform-threads:200}") int platformThreads,
+                               @Value("${cloud-file.io.upload-concurrency:32}") int uploadConcurrency,
+                               @Value("${cloud-file.io.merge-concurrency:4}") int mergeConcurrency,
+                               @Value("${cloud-file.io.download-concurrency:1024}") int downloadConcurrency) {
+        this.mode = mode;
+        this.uploadPermits = new Semaphore(uploadConcurrency, true);
+        this.mergePermits = new Semaphore(mergeConcurrency, true);
+        this.downloadPermits = new Semaphore(downloadConcurrency, true);
+        switch (mode) {
+            case PLATFORM:
+                executorService = Executors.newFixedThreadPool(platformThreads, new CustomizableThreadFactory("cloud-file-io-"));
+                break;
+            case VIRTUAL:
+                executorService = newVirtualThreadExecutor();
+                break;
+            default:
+                executorService = null;
+        }
+        scheduler = executorService == null ? null : Schedulers.fromExecutorService(executorService, "cloud-file-io");
+        log.info("文件读写执行模式:{}，上传并发:{}，合并并发:{}，下载并发:{}", mode, uploadConcurrency, mergeConcurrency,
+                downloadConcurrency);
+    }
+
+    /**
+     * 通过反射创建虚拟线程执行器，代码本身不依赖 JDK 21，只有选择 VIRTUAL 模式时才要求运行在 JDK 21 及以上
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "cloud-file-io-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cloud-file.io.mode=VIRTUAL 需要 JDK 21 及以上，当前版本："
+                    + System.getProperty("java.version"), e);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public <T> Mono<T> upload(Callable<T> task) {
+        return submit(uploadPermits, task);
+    }
+
+    public <T> Mono<T> merge(Callable<T> task) {
+        return submit(mergePermits, task);
+    }
+
+    public <T> Mono<T> download(Callable<T> task) {
+        return submit(downloadPermits, task);
+    }
+
+    private <T> Mono<T> submit(Semaphore permits, Callable<T> task) {
+        Mono<T> mono = Mono.fromCallable(() -> {
+            permits.acquire();
+            try {
+                return task.call();
+            } finally {
+                permits.release();
+            }
+        });
+        return scheduler == null ? mono : mono.subscribeOn(scheduler);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.dispose();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.jravity.auditadmin.loadtest;
+
+import com.jravity.auditadmin.config.property.TxAsrProperties;
+import com.jravity.auditadmin.controller.CloudFileController;
+import com.jravity.auditadmin.executor.CloudFileIoExecutor;
+import com.jravity.auditadmin.executor.TxAsrClientExecutor;
+import com.jravity.auditadmin.metrics.CloudFileMetrics;
+import com.jravity.auditadmin.service.SyncDataService;
+import com.jravity.auditadmin.service.impl.CloudFileServiceImpl;
+import com.jravity.auditadmin.service.impl.CloudFileUsageLedger;
+import com.jravity.auditadmin.service.impl.MergeProgressRegistry;
+import com.jravity.utils.model.ResponseBean;
+import com.jravity.utils.model.req.FileMultipartyInfoReq;
+import com.jravity.utils.model.req.MergeFileReq;
+import com.jravity.utils.model.req.VerifyFileReq;
+import com.tencentcloudapi.asr.v20190614.models.CreateRecTaskResponse;
+import com.tencentcloudapi.asr.v20190614.models.Task;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.jravity.auditadmin.util.file.AdminFileUtil.TEMP_DIR;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 分片上传压测工具
+ * 在进程内直接调用 CloudFileController 的 verify / fileUploadMultiparty / mergeFile，
+ * 签名校验、腾讯语音识别、Mongo 都用桩代替，只保留真实的磁盘读写
+ *
+ * 参数(都是可选的)：
+ * --uploads=200 --concurrency=50 --chunks=20 --chunkSize=1048576
+ * --retryRate=0.05 --outOfOrder=true --asr=true --asrLatencyMs=200
+ * --ioMode=CALLER --uploadConcurrency=32 --mergeConcurrency=4
+ *
+ * 分片和合并后的文件写在 AdminFileUtil.TEMP_DIR/loadtest/loadtest 下，合并后的文件在压测结束时删除
+ */
+public class CloudFileLoadGenerator {
+
+    private static final String SYS_CODE = "loadtest";
+    private static final String FILE_TYPE = "loadtest";
+    private static final String VIEW_BASE_ADDRESS = "http://localhost/view";
+
+    private final int uploads;
+    private final int concurrency;
+    private final int chunks;
+    private final int chunkSize;
+    private final double retryRate;
+    private final boolean outOfOrder;
+    private final boolean asr;
+    private final long asrLatencyMs;
+
+    private final CloudFileIoExecutor ioExecutor;
+    private final CloudFileController controller;
+    private final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final List<String> mergedUrls = Collections.synchronizedList(new ArrayList<>());
+
+    public CloudFileLoadGenerator(Map<String, String> options) {
+        uploads = Integer.parseInt(options.getOrDefault("uploads", "200"));
+        concurrency = Integer.parseInt(options.getOrDefault("concurrency", "50"));
+        chunks = Integer.parseInt(options.getOrDefault("chunks", "20"));
+        chunkSize = Integer.parseInt(options.getOrDefault("chunkSize", "1048576"));
+        retryRate = Double.parseDouble(options.getOrDefault("retryRate", "0.05"));
+        outOfOrder = Boolean.parseBoolean(options.getOrDefault("outOfOrder", "true"));
+        asr = Boolean.parseBoolean(options.getOrDefault("asr", "true"));
+        asrLatencyMs = Long.parseLong(options.getOrDefault("asrLatencyMs", "200"));
+        ioExecutor = new CloudFileIoExecutor(
+                CloudFileIoExecutor.Mode.valueOf(options.getOrDefault("ioMode", "CALLER")), concurrency,
+                Integer.parseInt(options.getOrDefault("uploadConcurrency", "32")),
+                Integer.parseInt(options.getOrDefault("mergeConcurrency", "4")), concurrency);
+        controller = createController();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "true");
+        }
+        new CloudFileLoadGenerator(options).run();
+    }
+
+    private CloudFileController createController() {
+        SyncDataService syncDataService = mock(SyncDataService.class);
+        when(syncDataService.signCheck(anyString(), anyString())).thenReturn(Boolean.TRUE);
+
+        TxAsrClientExecutor asrExecutor = mock(TxAsrClientExecutor.class);
+        when(asrExecutor.createRecTask(anyString())).thenAnswer(invocation -> {
+            TimeUnit.MILLISECONDS.sleep(asrLatencyMs);
+            Task task = new Task();
+            task.setTaskId(ThreadLocalRandom.current().nextLong(Long.MAX_VALUE));
+            CreateRecTaskResponse response = new CreateRecTaskResponse();
+            response.setData(task);
+            response.setRequestId(UUID.randomUUID().toString());
+            return response;
+        });
+
+        TxAsrProperties txAsrProperties = mock(TxAsrProperties.class);
+        when(txAsrProperties.getViewFileBaseAddress()).thenReturn(VIEW_BASE_ADDRESS);
+
+        CloudFileMetrics metrics = new CloudFileMetrics(new SimpleMeterRegistry());
+        CloudFileUsageLedger ledger = new CloudFileUsageLedger();
+        MergeProgressRegistry progressRegistry = new MergeProgressRegistry();
+        CloudFileServiceImpl service = new CloudFileServiceImpl(asrExecutor, mock(MongoTemplate.class),
+                txAsrProperties, metrics, ledger, progressRegistry);
+        return new CloudFileController(service, syncDataService, metrics, ledger, progressRegistry, ioExecutor);
+    }
+
+    public void run() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> futures = new ArrayList<>(uploads);
+        long begin = System.nanoTime();
+        for (int i = 0; i < uploads; i++) {
+            futures.add(pool.submit(this::upload));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                e.printStackTrace();
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+        ioExecutor.shutdown();
+        report(elapsed);
+        cleanup();
+    }
+
+    /**
+     * 模拟一个客户端完整的上传流程：校验已存在分片 -> 上传缺失分片(乱序、重试) -> 再次校验 -> 合并
+     */
+    private Void upload() {
+        final String fileId = UUID.randomUUID().toString().replace("-", "");
+        final Random random = ThreadLocalRandom.current();
+        final long uploadBegin = System.nanoTime();
+
+        List<String> existing = verify(fileId);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 1; i <= chunks; i++) {
+            if (!existing.contains(String.valueOf(i))) {
+                order.add(i);
+            }
+        }
+        if (outOfOrder) {
+            Collections.shuffle(order, random);
+        }
+
+        byte[] data = new byte[chunkSize];
+        for (Integer chunk : order) {
+            random.nextBytes(data);
+            uploadChunk(fileId, chunk, data);
+            // 模拟客户端超时后重传同一个分片
+            if (random.nextDouble() < retryRate) {
+                uploadChunk(fileId, chunk, data);
+            }
+        }
+
+        verify(fileId);
+
+        MergeFileReq req = new MergeFileReq();
+        req.setId(fileId);
+        req.setFileName(fileId + ".wav");
+        req.setSysCode(SYS_CODE);
+        req.setFileType(FILE_TYPE);
+        req.setTotalLength(chunks);
+        req.setSpeechRecognition(asr);
+        req.setFileHistoryId(fileId);
+        long begin = System.nanoTime();
+        ResponseBean<String> merged = controller.mergeFile("stub", req).block();
+        record("merge", begin);
+        if (merged == null || merged.getData() == null || merged.getData().isEmpty()) {
+            failures.incrementAndGet();
+        } else {
+            mergedUrls.add(merged.getData());
+        }
+        record("upload", uploadBegin);
+        return null;
+    }
+
+    private List<String> verify(String fileId) {
+        VerifyFileReq req = new VerifyFileReq();
+        req.setId(fileId);
+        req.setSysCode(SYS_CODE);
+        req.setFileType(FILE_TYPE);
+        long begin = System.nanoTime();
+        ResponseBean<List<String>> response = controller.verify("stub", req).block();
+        record("verify", begin);
+        return response == null || response.getData() == null ? Collections.emptyList() : response.getData();
+    }
+
+    private void uploadChunk(String fileId, int chunk, byte[] data) {
+        FileMultipartyInfoReq req = new FileMultipartyInfoReq();
+        req.setId(fileId);
+        req.setChunkName(String.valueOf(chunk));
+        req.setSysCode(SYS_CODE);
+        req.setFileType(FILE_TYPE);
+        MockMultipartFile file = new MockMultipartFile("file", String.valueOf(chunk), null, data);
+        long begin = System.nanoTime();
+        ResponseBean<Boolean> response = controller.fileUploadMultiparty(file, "stub", req).block();
+        record("chunk", begin);
+        if (response == null || !Boolean.TRUE.equals(response.getData())) {
+            failures.incrementAndGet();
+        } else {
+            uploadedBytes.addAndGet(data.length);
+        }
+    }
+
+    private void record(String operation, long begin) {
+        latencies.computeIfAbsent(operation, k -> Collections.synchronizedList(new ArrayList<>()))
+                .add(System.nanoTime() - begin);
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("uploads=%d concurrency=%d chunks=%d chunkSize=%d retryRate=%.2f outOfOrder=%b asr=%b%n",
+                uploads, concurrency, chunks, chunkSize, retryRate, outOfOrder, asr);
+        System.out.printf("elapsed=%.2fs failures=%d throughput=%.2f MB/s%n",
+                seconds, failures.get(), uploadedBytes.get() / 1024.0 / 1024.0 / seconds);
+        System.out.printf("%-8s %8s %10s %10s %10s %10s%n", "op", "count", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)");
+        for (String operation : Arrays.asList("chunk", "verify", "merge", "upload")) {
+            List<Long> values = latencies.get(operation);
+            if (values == null || values.isEmpty()) {
+                continue;
+            }
+            long[] sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+            System.out.printf("%-8s %8d %10.2f %10.2f %10.2f %10.2f%n", operation, sorted.length,
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    sorted[sorted.length - 1] / 1e6);
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private void cleanup() {
+        for (String url : mergedUrls) {
+            File merged = new File(TEMP_DIR + url.substring(VIEW_BASE_ADDRESS.length()));
+            merged.delete();
+            merged.getParentFile().delete();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.jravity.auditadmin.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 云盘文件上传、合并、下载的指标埋点
+ * 指标注册到 MeterRegistry 中，具体导出到 Prometheus 还是其他监控系统由注入的 registry 决定
+ */
+@Component
+public class CloudFileMetrics {
+
+    private static final String PREFIX = "cloudfile.";
+
+    /**
+     * 合并阶段：拷贝分片、删除分片、创建语音识别任务、压缩存储
+     */
+    public enum MergePhase {
+        COPY, CLEANUP, ASR, COMPRESS
+    }
+
+    /**
+     * 下载类型：整个文件、单个Range、多个Range
+     */
+    public enum RangeType {
+        FULL, SINGLE, MULTI
+    }
+
+    private final AtomicInteger inFlightUploads = new AtomicInteger();
+    private final AtomicInteger inFlightMerges = new AtomicInteger();
+
+    private final Timer chunkWriteTimer;
+    private final DistributionSummary uploadThroughput;
+    private final Map<MergePhase, Timer> mergePhaseTimers = new EnumMap<>(MergePhase.class);
+    private final Map<RangeType, Timer> downloadFirstByteTimers = new EnumMap<>(RangeType.class);
+    private final Map<RangeType, DistributionSummary> downloadThroughputs = new EnumMap<>(RangeType.class);
+
+    public CloudFileMetrics(MeterRegistry registry) {
+        Gauge.builder(PREFIX + "upload.inflight", inFlightUploads, AtomicInteger::get)
+                .description("正在写入的分片数")
+                .register(registry);
+        Gauge.builder(PREFIX + "merge.inflight", inFlightMerges, AtomicInteger::get)
+                .description("正在合并的文件数")
+                .register(registry);
+
+        chunkWriteTimer = Timer.builder(PREFIX + "upload.chunk.write")
+                .description("分片落盘耗时")
+                .publishPercentileHistogram()
+                .register(registry);
+        uploadThroughput = DistributionSummary.builder(PREFIX + "upload.chunk.throughput")
+                .description("分片落盘速度")
+                .baseUnit("bytes/s")
+                .publishPercentileHistogram()
+                .register(registry);
+
+        for (MergePhase phase : MergePhase.values()) {
+            mergePhaseTimers.put(phase, Timer.builder(PREFIX + "merge.duration")
+                    .description("合并各阶段耗时")
+                    .tag("phase", phase.name().toLowerCase())
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        for (RangeType type : RangeType.values()) {
+            String tag = type.name().toLowerCase();
+            downloadFirstByteTimers.put(type, Timer.builder(PREFIX + "download.first.byte")
+                    .description("下载首字节耗时")
+                    .tag("range", tag)
+                    .publishPercentileHistogram()
+                    .register(registry));
+            downloadThroughputs.put(type, DistributionSummary.builder(PREFIX + "download.throughput")
+                    .description("下载速度")
+                    .baseUnit("bytes/s")
+                    .tag("range", tag)
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+    }
+
+    public void uploadStarted() {
+        inFlightUploads.incrementAndGet();
+    }
+
+    public void uploadFinished() {
+        inFlightUploads.decrementAndGet();
+    }
+
+    public void mergeStarted() {
+        inFlightMerges.incrementAndGet();
+    }
+
+    public void mergeFinished() {
+        inFlightMerges.decrementAndGet();
+    }
+
+    /**
+     * 记录一次分片落盘
+     *
+     * @param nanos 落盘耗时(纳秒)
+     * @param bytes 分片大小
+     */
+    public void recordChunkWrite(long nanos, long bytes) {
+        chunkWriteTimer.record(nanos, TimeUnit.NANOSECONDS);
+        if (nanos > 0) {
+            uploadThroughput.record(bytesPerSecond(bytes, nanos));
+        }
+    }
+
+    public void recordMergePhase(MergePhase phase, long nanos) {
+        mergePhaseTimers.get(phase).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 记录一次下载
+     *
+     * @param type           下载类型
+     * @param firstByteNanos 从收到请求到写出第一个字节的耗时(纳秒)，未写出任何字节时为 -1
+     * @param totalNanos     下载总耗时(纳秒)
+     * @param bytes          写出的字节数
+     */
+    public void recordDownload(RangeType type, long firstByteNanos, long totalNanos, long bytes) {
+        if (firstByteNanos >= 0) {
+            downloadFirstByteTimers.get(type).record(firstByteNanos, TimeUnit.NANOSECONDS);
+        }
+        if (totalNanos > 0 && bytes > 0) {
+            downloadThroughputs.get(type).record(bytesPerSecond(bytes, totalNanos));
+        }
+    }
+
+    private static double bytesPerSecond(long bytes, long nanos) {
+        return bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+}
@@ -3,6 +3,10 @@ package com.jravity.auditadmin.service.impl;
 import com.jravity.auditadmin.config.property.TxAsrProperties;
 import com.jravity.auditadmin.service.CloudFileService;
 import com.jravity.auditadmin.executor.TxAsrClientExecutor;
+import com.jravity.auditadmin.metrics.CloudFileMetrics;
+import com.jravity.auditadmin.metrics.CloudFileMetrics.MergePhase;
+import com.jravity.auditadmin.util.file.FrameCompressedFile;
+import com.jravity.auditadmin.util.file.MerkleIndex;
 import com.jravity.mongo.audit.TxAsrTask;
 import com.jravity.mongo.audit.constants.SourceIdTypeEnum;
 import com.jravity.utils.constants.enums.BizExceptionEnum;
@@ -14,12 +18,16 @@ import com.tencentcloudapi.asr.v20190614.models.CreateRecTaskResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StreamUtils;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
 import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -39,14 +47,75 @@ public class CloudFileServiceImpl implements CloudFileService {
     private final TxAsrClientExecutor txAsrClientExecutor;
     private final MongoTemplate mongoTemplate;
     private final TxAsrProperties txAsrProperties;
+    private final CloudFileMetrics cloudFileMetrics;
+    private final CloudFileUsageLedger cloudFileUsageLedger;
+    private final MergeProgressRegistry mergeProgressRegistry;
+
+    /**
+     * 合并后是否按帧压缩存储，压缩后的文件只能通过 downloadFile 下载
+     */
+    @Value("${cloud-file.storage.compress:false}")
+    private boolean compressStorage;
+
+    /**
+     * viewFile 接口对外的地址，后面拼接 TEMP_DIR 下的相对路径，例如 https://host/cloudFile/viewFile?path=；
+     * 压缩后原文件已删除，viewFileBaseAddress 的地址读不到，开启压缩存储时必须配置
+     */
+    @Value("${cloud-file.storage.compressed-view-base-address:}")
+    private String compressedViewBaseAddress;
+
+    /**
+     * 每个 sysCode 最多占用的磁盘空间，0 表示不限制
+     */
+    @Value("${cloud-file.quota.bytes-per-sys-code:0}")
+    private long quotaPerSysCode;
+
+    /**
+     * 是否边合并边识别：识别任务使用 progressiveFile 接口的地址，合并到哪里识别服务就能读到哪里
+     */
+    @Value("${cloud-file.merge.pipeline-asr:false}")
+    private boolean pipelineAsr;
+
+    /**
+     * progressiveFile 接口对外的地址，后面拼接合并进度的 token，例如 https://host/cloudFile/progressiveFile?token=
+     */
+    @Value("${cloud-file.merge.progressive-base-address:}")
+    private String progressiveBaseAddress;
+
+    @PostConstruct
+    public void checkStorageConfig() {
+        if (compressStorage && StringUtils.isBlank(compressedViewBaseAddress)) {
+            throw new IllegalStateException("开启 cloud-file.storage.compress 时需要配置 cloud-file.storage.compressed-view-base-address");
+        }
+    }
 
     @Override
     public Boolean fileUploadMultiparty(FileMultipartyInfoReq req) {
+        cloudFileMetrics.uploadStarted();
+        try {
+            return writeChunk(req);
+        } finally {
+            cloudFileMetrics.uploadFinished();
+        }
+    }
+
+    private Boolean writeChunk(FileMultipartyInfoReq req) {
         final MultipartFile file = req.getChunk();
         final long fileSize = file.getSize();
         final String fileId = req.getId();
         final String chunkName = req.getChunkName();
         log.info("文件上传开始，fileMd5{},chunkName{}", fileId, chunkName);
+        if (quotaPerSysCode > 0) {
+            final long used = cloudFileUsageLedger.usage(req.getSysCode());
+            if (used == CloudFileUsageLedger.UNKNOWN) {
+                log.error("磁盘占用统计中，暂不接受上传，sysCode:{}", req.getSysCode());
+                return Boolean.FALSE;
+            }
+            if (used + fileSize > quotaPerSysCode) {
+                log.error("超出磁盘配额，sysCode:{}，已使用:{}，配额:{}", req.getSysCode(), used, quotaPerSysCode);
+                return Boolean.FALSE;
+            }
+        }
         final String dirPath = getTempDirPath(fileId, req.getSysCode(), req.getFileType());
         File dirFile = new File(dirPath);
         if (!dirFile.exists() && !dirFile.mkdirs()) {
@@ -54,26 +123,41 @@ public class CloudFileServiceImpl implements CloudFileService {
         }
         final String chunkFileName = dirPath + File.separator + chunkName;
         final File chunkFile = new File(chunkFileName);
+        // 重传的分片会覆盖之前的分片，台账只记差值
+        final long previousLength = chunkFile.length();
 
         try (InputStream in = file.getInputStream();
              OutputStream out = new FileOutputStream(chunkFile)) {
+            final long begin = System.nanoTime();
             StreamUtils.copy(in, out);
+            cloudFileMetrics.recordChunkWrite(System.nanoTime() - begin, fileSize);
             log.info("文件上传完毕，fileMd5{},chunkName{}", fileId, chunkName);
         } catch (IOException e) {
             log.error("文件上传失败", e);
         }
         if (chunkFile.exists() && (fileSize == chunkFile.length())) {
+            cloudFileUsageLedger.add(req.getFileType(), req.getSysCode(), fileSize - previousLength);
             return Boolean.TRUE;
         }
         log.error("文件上传失败,fileMd5{},chunkName{},文件大小:{},保存大小{}",
                 fileId, chunkName, fileSize, chunkFile.length());
         chunkFile.delete();
+        cloudFileUsageLedger.add(req.getFileType(), req.getSysCode(), chunkFile.length() - previousLength);
         return Boolean.FALSE;
 
     }
 
     @Override
     public String mergeFile(MergeFileReq req) {
+        cloudFileMetrics.mergeStarted();
+        try {
+            return doMergeFile(req);
+        } finally {
+            cloudFileMetrics.mergeFinished();
+        }
+    }
+
+    private String doMergeFile(MergeFileReq req) {
         final String fileId = req.getId();
         final String fileName = req.getFileName();
         final String dirPath = getTempDirPath(fileId, req.getSysCode(), req.getFileType());
@@ -107,54 +191,107 @@ public class CloudFileServiceImpl implements CloudFileService {
                 log.error("创建文件失败,{}", file.getAbsolutePath(), e);
             }
         }
+        final boolean speechRecognition = Objects.nonNull(req.getSpeechRecognition()) && req.getSpeechRecognition();
+        final String viewUrl = txAsrProperties.getViewFileBaseAddress() + file.getPath().split(TEMP_DIR)[1];
+        // 流水线模式：合并前先用边合并边读取的地址创建识别任务，识别和合并同时进行
+        final MergeProgressRegistry.Progress progress = pipelineAsr && speechRecognition
+                ? mergeProgressRegistry.register(file, collect.stream().mapToLong(File::length).sum()) : null;
+        final long previousLength = file.length() + MerkleIndex.indexFile(file).length();
+        TxAsrTask pipelinedAsrTask = null;
         try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
-            byte[] temp = new byte[TxAsrProperties.BYTE_SIZE];
-            // 合并文件
-            for (File f : collect) {
-                try (FileInputStream fin = new FileInputStream(f)) {
-                    randomAccessFile.skipBytes(0);
-                    int i;
-                    while ((i = fin.read(temp)) != -1) {
-                        randomAccessFile.write(temp, 0, i);
-                    }
-                } catch (FileNotFoundException e) {
-                    log.error("找不到文件：{}", f.getAbsolutePath());
-                    throw e;
-                }
+            long phaseBegin = System.nanoTime();
+            if (progress != null) {
+                pipelinedAsrTask = createAsrTask(req, progressiveBaseAddress + progress.getToken(), file);
+                phaseBegin = recordMergePhase(MergePhase.ASR, phaseBegin);
             }
 
+            // 合并文件，同时计算完整性索引
+            MerkleIndex.Builder merkle = new MerkleIndex.Builder(MerkleIndex.DEFAULT_BLOCK_SIZE);
+            mergeChunks(collect, randomAccessFile, new byte[TxAsrProperties.BYTE_SIZE], merkle, progress);
+            if (progress != null) {
+                progress.complete();
+            }
+            final File indexFile = MerkleIndex.indexFile(file);
+            merkle.build().write(indexFile);
+            cloudFileUsageLedger.add(req.getFileType(), req.getSysCode(),
+                    file.length() + indexFile.length() - previousLength);
+
+            phaseBegin = recordMergePhase(MergePhase.COPY, phaseBegin);
+
             // 合并完后，删除分片文件
-            collect.stream().filter(File::exists)
-                    .forEach(fileItem -> fileItem.delete());
+            long deleted = 0;
+            for (File fileItem : collect) {
+                final long chunkLength = fileItem.length();
+                if (fileItem.exists() && fileItem.delete()) {
+                    deleted += chunkLength;
+                }
+            }
+            cloudFileUsageLedger.release(req.getFileType(), req.getSysCode(), deleted);
             dirFile.delete();
+            phaseBegin = recordMergePhase(MergePhase.CLEANUP, phaseBegin);
 
             // 开启语音识别
-            String viewUrl = txAsrProperties.getViewFileBaseAddress() + file.getPath().split(TEMP_DIR)[1];
-            if (Objects.nonNull(req.getSpeechRecognition()) && req.getSpeechRecognition()) {
-                // 返回的resp是一个CreateRecTaskResponse的实例，与请求对象对应
-                CreateRecTaskResponse resp = txAsrClientExecutor.createRecTask(viewUrl);
-                if (resp.getData().getTaskId() == null || resp.getRequestId() == null) {
-                    throw new BizException(BizExceptionEnum.CREATE_ASR_ERROR);
-                }
-                // 结果保存映射
-                TxAsrTask txAsrTask = new TxAsrTask();
-                txAsrTask.setSourceId(req.getFileHistoryId());
-                txAsrTask.setSourceIdType(SourceIdTypeEnum.tbl_cloud_file_history);
-                txAsrTask.setSysCode(req.getSysCode());
-                txAsrTask.setUrl(viewUrl);
-                txAsrTask.setTaskId(resp.getData().getTaskId());
-                txAsrTask.setRequestId(resp.getRequestId());
-                txAsrTask.setFilePath(file.getPath());
-                mongoTemplate.save(txAsrTask);
+            if (speechRecognition && progress == null) {
+                createAsrTask(req, viewUrl, file);
+                phaseBegin = recordMergePhase(MergePhase.ASR, phaseBegin);
+            }
+
+            // 语音识别需要直接访问原始文件，只有不做语音识别的文件才压缩
+            if (compressStorage && !speechRecognition) {
+                randomAccessFile.close();
+                cloudFileUsageLedger.add(req.getFileType(), req.getSysCode(), compressStoredFile(file));
+                recordMergePhase(MergePhase.COMPRESS, phaseBegin);
+                return compressedViewBaseAddress + URLEncoder.encode(file.getPath().split(TEMP_DIR)[1],
+                        StandardCharsets.UTF_8.name());
             }
 
             return viewUrl;
         } catch (Exception e) {
+            if (progress != null) {
+                progress.fail();
+            }
+            if (pipelinedAsrTask != null) {
+                discardAsrTask(pipelinedAsrTask);
+            }
             log.error("合并文件异常,", e);
             throw new RuntimeException("合并文件异常");
         }
     }
 
+    /**
+     * 创建语音识别任务并保存映射
+     */
+    private TxAsrTask createAsrTask(MergeFileReq req, String url, File file) {
+        // 返回的resp是一个CreateRecTaskResponse的实例，与请求对象对应
+        CreateRecTaskResponse resp = txAsrClientExecutor.createRecTask(url);
+        if (resp.getData().getTaskId() == null || resp.getRequestId() == null) {
+            throw new BizException(BizExceptionEnum.CREATE_ASR_ERROR);
+        }
+        // 结果保存映射
+        TxAsrTask txAsrTask = new TxAsrTask();
+        txAsrTask.setSourceId(req.getFileHistoryId());
+        txAsrTask.setSourceIdType(SourceIdTypeEnum.tbl_cloud_file_history);
+        txAsrTask.setSysCode(req.getSysCode());
+        txAsrTask.setUrl(url);
+        txAsrTask.setTaskId(resp.getData().getTaskId());
+        txAsrTask.setRequestId(resp.getRequestId());
+        txAsrTask.setFilePath(file.getPath());
+        mongoTemplate.save(txAsrTask);
+        return txAsrTask;
+    }
+
+    /**
+     * 流水线模式下合并失败，识别服务读到的文件不完整：删除映射，识别结果不再回写到文件记录
+     */
+    private void discardAsrTask(TxAsrTask txAsrTask) {
+        try {
+            mongoTemplate.remove(txAsrTask);
+            log.warn("合并失败，丢弃语音识别任务，taskId:{}", txAsrTask.getTaskId());
+        } catch (Exception e) {
+            log.error("丢弃语音识别任务失败，taskId:{}", txAsrTask.getTaskId(), e);
+        }
+    }
+
     @Override
     public List<String> verify(VerifyFileReq req) {
 
@@ -170,6 +307,66 @@ public class CloudFileServiceImpl implements CloudFileService {
         return Collections.emptyList();
     }
 
+    /**
+     * 按顺序把分片写入完整文件(基准测试 MergeFileBenchmark 也直接调用此方法)
+     *
+     * @param chunks 已排序的分片
+     * @param target 完整文件
+     * @param temp   拷贝缓冲区
+     */
+    static void mergeChunks(List<File> chunks, RandomAccessFile target, byte[] temp) throws IOException {
+        mergeChunks(chunks, target, temp, null, null);
+    }
+
+    /**
+     * 合并分片，merkle 不为空时同时计算完整性索引，progress 不为空时每次写入后更新合并进度
+     */
+    static void mergeChunks(List<File> chunks, RandomAccessFile target, byte[] temp, MerkleIndex.Builder merkle,
+                            MergeProgressRegistry.Progress progress) throws IOException {
+        for (File f : chunks) {
+            try (FileInputStream fin = new FileInputStream(f)) {
+                target.skipBytes(0);
+                int i;
+                while ((i = fin.read(temp)) != -1) {
+                    target.write(temp, 0, i);
+                    if (merkle != null) {
+                        merkle.update(temp, 0, i);
+                    }
+                    if (progress != null) {
+                        progress.advance(i);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                log.error("找不到文件：{}", f.getAbsolutePath());
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 把合并后的文件按帧压缩，压缩成功后删除原文件，返回磁盘占用的变化量
+     */
+    private long compressStoredFile(File file) throws IOException {
+        final File compressed = new File(file.getPath() + FrameCompressedFile.SUFFIX);
+        FrameCompressedFile.compress(file, compressed, FrameCompressedFile.DEFAULT_FRAME_SIZE);
+        final long rawLength = file.length();
+        log.info("文件压缩完毕，{}，原大小:{}，压缩后大小:{}", file.getPath(), rawLength, compressed.length());
+        if (!file.delete()) {
+            log.error("删除压缩前的文件失败，{}", file.getAbsolutePath());
+            return compressed.length();
+        }
+        return compressed.length() - rawLength;
+    }
+
+    /**
+     * 记录合并阶段耗时，返回下一阶段的开始时间
+     */
+    private long recordMergePhase(MergePhase phase, long phaseBegin) {
+        final long now = System.nanoTime();
+        cloudFileMetrics.recordMergePhase(phase, now - phaseBegin);
+        return now;
+    }
+
     private String getTempDirPath(String fileMd5, String sysCode, String fileType) {
         return TEMP_DIR + fileType + File.separator + sysCode + File.separator + fileMd5;
     }
@@ -0,0 +1,334 @@
+package com.jravity.auditadmin.service.impl;
+
+import com.jravity.auditadmin.util.file.MerkleIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import static com.jravity.auditadmin.util.file.AdminFileUtil.TEMP_DIR;
+
+/**
+ * 按 sysCode / fileType 统计的磁盘占用台账
+ * 由分片上传、合并、清理时增量更新，查询是 O(1) 的内存读取，不需要遍历 TEMP_DIR；
+ * 多个实例共享 TEMP_DIR 时每个实例只记录自己带来的增量，定时写到各自的快照 LEDGER_FILE.实例名，
+ * 查询结果是本实例的增量加上其它实例最近一次快照的合计，其它实例的部分最多落后一个快照周期；
+ * 启动时从自己的快照恢复，两次快照之间异常退出会丢失这段时间的增量。
+ * 一个快照都没有时(首次部署、快照丢失或损坏)由拿到 LEDGER_FILE.lock 文件锁的实例在后台遍历一次 TEMP_DIR 重新统计，
+ * 统计完成前占用返回 UNKNOWN，配额检查据此拒绝上传而不是把占用当成 0。
+ * 遍历只统计修改时间早于开始遍历的文件，之后写入的文件已经由增量记录；遍历前就被清理掉的文件会让占用略微偏小
+ */
+@Slf4j
+@Component
+public class CloudFileUsageLedger {
+
+    public static final String LEDGER_FILE = ".usage-ledger";
+    /**
+     * 台账还在重新统计，占用未知
+     */
+    public static final long UNKNOWN = -1;
+
+    private static final int VERSION = 1;
+    private static final String SEPARATOR = "/";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = LEDGER_FILE + ".lock";
+
+    /**
+     * 本实例带来的增量，统计是由本实例完成时也包括遍历的结果
+     */
+    private final Map<String, LongAdder> byFileType = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bySysCode = new ConcurrentHashMap<>();
+    /**
+     * 其它实例最近一次快照的合计，每次写快照时重新读取
+     */
+    private volatile Map<String, Long> othersByFileType = Collections.emptyMap();
+    private volatile Map<String, Long> othersBySysCode = Collections.emptyMap();
+    private final String snapshotName;
+    private final AtomicBoolean seeding = new AtomicBoolean();
+    private volatile boolean seeded = true;
+
+    public CloudFileUsageLedger(@Value("${cloud-file.usage.instance-id:}") String instanceId) {
+        if (StringUtils.isBlank(instanceId)) {
+            instanceId = hostName();
+        }
+        this.snapshotName = LEDGER_FILE + "." + instanceId.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("无法取得主机名，请配置 cloud-file.usage.instance-id", e);
+        }
+    }
+
+    /**
+     * 增加(bytes 为负数时减少)磁盘占用
+     */
+    public void add(String fileType, String sysCode, long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        byFileType.computeIfAbsent(fileType + SEPARATOR + sysCode, k -> new LongAdder()).add(bytes);
+        bySysCode.computeIfAbsent(sysCode, k -> new LongAdder()).add(bytes);
+    }
+
+    /**
+     * 清理任务删除文件后调用
+     */
+    public void release(String fileType, String sysCode, long bytes) {
+        add(fileType, sysCode, -bytes);
+    }
+
+    public long usage(String fileType, String sysCode) {
+        if (!seeded) {
+            return UNKNOWN;
+        }
+        String key = fileType + SEPARATOR + sysCode;
+        LongAdder adder = byFileType.get(key);
+        return (adder == null ? 0 : adder.sum()) + othersByFileType.getOrDefault(key, 0L);
+    }
+
+    public long usage(String sysCode) {
+        if (!seeded) {
+            return UNKNOWN;
+        }
+        LongAdder adder = bySysCode.get(sysCode);
+        return (adder == null ? 0 : adder.sum()) + othersBySysCode.getOrDefault(sysCode, 0L);
+    }
+
+    @PostConstruct
+    public void load() {
+        claimLegacySnapshot();
+        File file = new File(TEMP_DIR, snapshotName);
+        Map<String, Long> entries = new HashMap<>();
+        if (file.isFile() && readSnapshot(file, entries)) {
+            entries.forEach(this::add);
+            refreshOthers();
+            log.info("磁盘占用台账加载完毕，条目数:{}", entries.size());
+            return;
+        }
+        if (refreshOthers()) {
+            // 新加入的实例，已有文件都记在其它实例的快照里
+            return;
+        }
+        seeded = false;
+        startSeeding();
+    }
+
+    /**
+     * 只有一个实例时的快照文件名是 LEDGER_FILE，由第一个启动的实例原子地改名接管，其它实例改名失败后不再读取
+     */
+    private void claimLegacySnapshot() {
+        Path legacy = Paths.get(TEMP_DIR, LEDGER_FILE);
+        if (!Files.isRegularFile(legacy)) {
+            return;
+        }
+        try {
+            Files.move(legacy, Paths.get(TEMP_DIR, snapshotName), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.info("旧的磁盘占用台账已被其它实例接管：{}", e.getMessage());
+        }
+    }
+
+    private void add(String key, long bytes) {
+        String[] parts = key.split(SEPARATOR, 2);
+        add(parts[0], parts[1], bytes);
+    }
+
+    /**
+     * 读到一半失败时 into 里可能已有部分条目，由调用方丢弃
+     */
+    private boolean readSnapshot(File file, Map<String, Long> into) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                log.error("磁盘占用台账版本不匹配，忽略：{}", file.getAbsolutePath());
+                return false;
+            }
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                into.merge(in.readUTF(), in.readLong(), Long::sum);
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("磁盘占用台账加载失败：{}", file.getAbsolutePath(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 重新合计其它实例的快照
+     *
+     * @return 是否存在其它实例的快照
+     */
+    private boolean refreshOthers() {
+        File[] files = new File(TEMP_DIR).listFiles((dir, name) -> name.startsWith(LEDGER_FILE + ".")
+                && !name.endsWith(TEMP_SUFFIX) && !name.equals(LOCK_FILE) && !name.equals(snapshotName));
+        if (files == null || files.length == 0) {
+            othersByFileType = Collections.emptyMap();
+            othersBySysCode = Collections.emptyMap();
+            return false;
+        }
+        Map<String, Long> byKey = new HashMap<>();
+        for (File file : files) {
+            Map<String, Long> entries = new HashMap<>();
+            if (readSnapshot(file, entries)) {
+                entries.forEach((key, bytes) -> byKey.merge(key, bytes, Long::sum));
+            }
+        }
+        Map<String, Long> bySys = new HashMap<>();
+        byKey.forEach((key, bytes) -> bySys.merge(key.split(SEPARATOR, 2)[1], bytes, Long::sum));
+        othersByFileType = byKey;
+        othersBySysCode = bySys;
+        return true;
+    }
+
+    private void startSeeding() {
+        if (!seeding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                seed();
+            } finally {
+                seeding.set(false);
+            }
+        }, "usage-ledger-seed");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 上一次统计失败，或者其它实例正在统计时重试
+     */
+    @Scheduled(fixedDelayString = "${cloud-file.usage.snapshot-interval:60000}")
+    public void retrySeeding() {
+        if (!seeded) {
+            startSeeding();
+        }
+    }
+
+    /**
+     * 拿到文件锁后按 TEMP_DIR/fileType/sysCode/... 的目录结构统计已有文件，写完快照才释放锁，
+     * 等锁的实例据此知道统计已经完成；失败时保持 UNKNOWN，由 retrySeeding 重试
+     */
+    private void seed() {
+        Path root = Paths.get(TEMP_DIR);
+        if (!Files.isDirectory(root)) {
+            // 首次部署，还没有任何文件
+            seeded = true;
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(root.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            if (lock == null) {
+                log.info("其它实例正在统计磁盘占用，稍后重试");
+                return;
+            }
+            if (refreshOthers()) {
+                // 等锁期间其它实例已经统计完毕
+                seeded = true;
+                return;
+            }
+            Map<String, Long> walked = walk(root);
+            walked.forEach(this::add);
+            seeded = true;
+            snapshot();
+        } catch (IOException | UncheckedIOException e) {
+            log.error("磁盘占用统计失败，稍后重试", e);
+        }
+    }
+
+    private Map<String, Long> walk(Path root) throws IOException {
+        Map<String, Long> walked = new HashMap<>();
+        final long begin = System.currentTimeMillis();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.forEach(path -> {
+                Path relative = root.relativize(path);
+                // 完整性索引按 INDEX_DIR/fileType/sysCode/... 存放，计入对应的 sysCode
+                if (relative.getNameCount() > 1 && relative.getName(0).toString().equals(MerkleIndex.INDEX_DIR)) {
+                    relative = relative.subpath(1, relative.getNameCount());
+                }
+                // 根目录下的台账快照等文件不属于任何 sysCode
+                if (relative.getNameCount() < 3 || !Files.isRegularFile(path)) {
+                    return;
+                }
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    // 开始遍历后写入的文件已经由 add 记录，再统计一次会重复
+                    if (attributes.lastModifiedTime().toMillis() < begin) {
+                        walked.merge(relative.getName(0) + SEPARATOR + relative.getName(1), attributes.size(), Long::sum);
+                    }
+                } catch (IOException e) {
+                    // 遍历期间被清理的文件
+                }
+            });
+        }
+        log.info("磁盘占用统计完毕，条目数:{}，耗时:{}ms", walked.size(), System.currentTimeMillis() - begin);
+        return walked;
+    }
+
+    /**
+     * 写本实例的快照并重新合计其它实例的快照；先写临时文件再原子替换，异常退出时不会留下写了一半的快照
+     */
+    @PreDestroy
+    @Scheduled(fixedDelayString = "${cloud-file.usage.snapshot-interval:60000}")
+    public synchronized void snapshot() {
+        if (!seeded) {
+            // 统计完成前不写快照，避免把不完整的台账当成有效快照
+            return;
+        }
+        refreshOthers();
+        File file = new File(TEMP_DIR, snapshotName);
+        File temp = new File(TEMP_DIR, snapshotName + TEMP_SUFFIX);
+        Map<String, Long> entries = new HashMap<>();
+        byFileType.forEach((key, adder) -> entries.put(key, adder.sum()));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        } catch (IOException e) {
+            log.error("磁盘占用台账保存失败", e);
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("磁盘占用台账替换失败", e);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.jravity.auditadmin.util.file;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 按固定大小分帧压缩的文件
+ * 每一帧独立用 Deflate 压缩，文件末尾保存帧索引，读取任意 Range 时只需要解压覆盖该 Range 的帧
+ *
+ * 文件格式：
+ * 帧1 | 帧2 | ... | 帧n | 帧偏移量 n+1 个 long | 原始长度 long | 帧大小 int | 帧数 int | MAGIC int
+ */
+public class FrameCompressedFile implements Closeable {
+
+    /**
+     * 压缩文件后缀，压缩后的文件名为原文件名 + 后缀
+     */
+    public static final String SUFFIX = ".cfz";
+    public static final int DEFAULT_FRAME_SIZE = 256 * 1024;
+
+    private static final int MAGIC = 0x43465a31;
+    private static final int FOOTER_SIZE = 8 + 4 + 4 + 4;
+
+    private final RandomAccessFile input;
+    private final long rawLength;
+    private final int frameSize;
+    private final long[] offsets;
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[0];
+    private final byte[] frame;
+
+    private FrameCompressedFile(RandomAccessFile input, long rawLength, int frameSize, long[] offsets) {
+        this.input = input;
+        this.rawLength = rawLength;
+        this.frameSize = frameSize;
+        this.offsets = offsets;
+        this.frame = new byte[frameSize];
+    }
+
+    /**
+     * 把 source 按帧压缩写入 target
+     */
+    public static void compress(File source, File target, int frameSize) throws IOException {
+        long frameCount = (source.length() + frameSize - 1) / frameSize;
+        long[] offsets = new long[(int) frameCount + 1];
+        byte[] raw = new byte[frameSize];
+        byte[] buffer = new byte[frameSize + frameSize / 16 + 64];
+        Deflater deflater = new Deflater();
+        long rawLength = 0;
+        long position = 0;
+        int frameIndex = 0;
+        try (InputStream in = new FileInputStream(source);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)))) {
+            int read;
+            while ((read = readFully(in, raw)) > 0) {
+                deflater.reset();
+                deflater.setInput(raw, 0, read);
+                deflater.finish();
+                offsets[frameIndex++] = position;
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                    position += n;
+                }
+                rawLength += read;
+            }
+            offsets[frameIndex] = position;
+            for (int i = 0; i <= frameIndex; i++) {
+                out.writeLong(offsets[i]);
+            }
+            out.writeLong(rawLength);
+            out.writeInt(frameSize);
+            out.writeInt(frameIndex);
+            out.writeInt(MAGIC);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 读取压缩文件的索引，input 由调用方负责关闭，close() 只释放解压器
+     */
+    public static FrameCompressedFile open(RandomAccessFile input) throws IOException {
+        long fileLength = input.length();
+        if (fileLength < FOOTER_SIZE) {
+            throw new IOException("压缩文件已损坏，长度不足");
+        }
+        input.seek(fileLength - FOOTER_SIZE);
+        long rawLength = input.readLong();
+        int frameSize = input.readInt();
+        int frameCount = input.readInt();
+        if (input.readInt() != MAGIC) {
+            throw new IOException("不是分帧压缩文件");
+        }
+        long[] offsets = new long[frameCount + 1];
+        input.seek(fileLength - FOOTER_SIZE - 8L * offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = input.readLong();
+        }
+        return new FrameCompressedFile(input, rawLength, frameSize, offsets);
+    }
+
+    /**
+     * 只读取文件尾部，返回压缩前的文件长度
+     */
+    public static long rawLength(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(input.length() - FOOTER_SIZE);
+            return input.readLong();
+        }
+    }
+
+    public long length() {
+        return rawLength;
+    }
+
+    /**
+     * 把压缩前文件 [start, start + length) 范围内的内容写入 output，只解压覆盖该范围的帧
+     */
+    public void copy(OutputStream output, long start, long length) throws IOException {
+        long end = Math.min(start + length, rawLength);
+        for (int i = (int) (start / frameSize); start < end; i++) {
+            int frameLength = inflateFrame(i);
+            long frameStart = (long) i * frameSize;
+            int from = (int) (start - frameStart);
+            int to = (int) Math.min(frameLength, end - frameStart);
+            output.write(frame, from, to - from);
+            start = frameStart + to;
+        }
+    }
+
+    /**
+     * 从压缩前文件的 position 处读满 length 个字节到 buffer
+     */
+    public void read(long position, byte[] buffer, int length) throws IOException {
+        if (position + length > rawLength) {
+            throw new EOFException("读取范围超出文件长度");
+        }
+        int copied = 0;
+        while (copied < length) {
+            int index = (int) ((position + copied) / frameSize);
+            int frameLength = inflateFrame(index);
+            int from = (int) (position + copied - (long) index * frameSize);
+            int n = Math.min(frameLength - from, length - copied);
+            System.arraycopy(frame, from, buffer, copied, n);
+            copied += n;
+        }
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+
+    private int inflateFrame(int index) throws IOException {
+        int size = (int) (offsets[index + 1] - offsets[index]);
+        if (compressed.length < size) {
+            compressed = new byte[size];
+        }
+        input.seek(offsets[index]);
+        input.readFully(compressed, 0, size);
+        inflater.reset();
+        inflater.setInput(compressed, 0, size);
+        try {
+            int length = 0;
+            while (!inflater.finished() && length < frame.length) {
+                int n = inflater.inflate(frame, length, frame.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("压缩帧已损坏，帧序号：" + index);
+                }
+                length += n;
+            }
+            return length;
+        } catch (DataFormatException e) {
+            throw new IOException("压缩帧已损坏，帧序号：" + index, e);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+}
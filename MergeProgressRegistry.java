@@ -0,0 +1,268 @@
+package com.jravity.auditadmin.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.jravity.auditadmin.util.file.AdminFileUtil.TEMP_DIR;
+
+/**
+ * 正在合并的文件的合并进度
+ * 流水线模式下识别服务通过 progressiveFile 接口读取正在合并的文件，读到还没合并的位置时阻塞等待；
+ * token 里带着文件的相对路径和总长度，并用 cloud-file.merge.progress-secret 签名，不能伪造也不能改成别的文件。
+ * 合并状态同时写到 TEMP_DIR 下 STATE_DIR 里的状态文件，共享 TEMP_DIR 的其它实例收到请求时按状态文件和文件长度轮询；
+ * 合并结束后进度保留 ttl 时间，之后(或者状态文件已经不在时)文件长度等于总长度就按合并完成的文件直接读取，
+ * 保存在识别任务里的地址不会因为进度过期而失效
+ */
+@Slf4j
+@Component
+public class MergeProgressRegistry {
+
+    public static final String STATE_DIR = ".merge-progress";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String MERGING = "MERGING";
+    private static final String FAILED = "FAILED";
+    private static final long POLL_MILLIS = 100;
+
+    private final Map<String, Progress> progresses = new ConcurrentHashMap<>();
+
+    @Value("${cloud-file.merge.progress-ttl:3600000}")
+    private long ttlMillis;
+
+    /**
+     * token 的签名密钥，所有实例配置相同的值
+     */
+    @Value("${cloud-file.merge.progress-secret:}")
+    private String secret;
+
+    public Progress register(File file, long total) {
+        final String id = UUID.randomUUID().toString().replace("-", "");
+        final String payload = encode(Paths.get(TEMP_DIR).relativize(file.toPath()).toString()) + "." + total + "." + id;
+        Progress progress = new Progress(payload + "." + sign(payload), file, total, stateFile(id));
+        progress.writeState(MERGING);
+        progresses.put(id, progress);
+        return progress;
+    }
+
+    /**
+     * 签名不对时返回 null；本实例在合并时返回内存里的进度，否则返回按状态文件轮询的进度
+     */
+    public Progress get(String token) {
+        final String[] parts = token.split("\\.");
+        if (parts.length != 4 || StringUtils.isBlank(secret)) {
+            return null;
+        }
+        final String payload = parts[0] + "." + parts[1] + "." + parts[2];
+        if (!MessageDigest.isEqual(sign(payload).getBytes(StandardCharsets.UTF_8),
+                parts[3].getBytes(StandardCharsets.UTF_8))) {
+            return null;
+        }
+        Progress local = progresses.get(parts[2]);
+        if (local != null) {
+            return local;
+        }
+        final File file = new File(TEMP_DIR, new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8));
+        final long total = Long.parseLong(parts[1]);
+        final File state = stateFile(parts[2]);
+        if (!state.isFile() && file.length() != total) {
+            return null;
+        }
+        return new SharedProgress(token, file, total, state);
+    }
+
+    /**
+     * 清理本实例过期的进度，以及任何实例留下的过期状态文件(包括合并中途退出的实例)
+     */
+    @Scheduled(fixedDelayString = "${cloud-file.merge.progress-evict-interval:60000}")
+    public void evictExpired() {
+        final long now = System.currentTimeMillis();
+        progresses.values().removeIf(progress -> progress.isExpired(now, ttlMillis));
+        File[] states = new File(TEMP_DIR, STATE_DIR).listFiles();
+        if (states == null) {
+            return;
+        }
+        for (File state : states) {
+            if (now - state.lastModified() > ttlMillis && !state.delete()) {
+                log.error("删除过期的合并状态文件失败：{}", state.getAbsolutePath());
+            }
+        }
+    }
+
+    private static File stateFile(String id) {
+        return new File(new File(TEMP_DIR, STATE_DIR), id);
+    }
+
+    private static String encode(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String sign(String payload) {
+        if (StringUtils.isBlank(secret)) {
+            throw new IllegalStateException("边合并边识别需要配置 cloud-file.merge.progress-secret");
+        }
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("token 签名失败", e);
+        }
+    }
+
+    /**
+     * 一个文件的合并进度，合并线程更新，读取线程等待
+     */
+    public static class Progress {
+        private final String token;
+        private final File file;
+        private final long total;
+        private final File state;
+        private long merged;
+        private boolean failed;
+        private long finishedAt;
+
+        Progress(String token, File file, long total, File state) {
+            this.token = token;
+            this.file = file;
+            this.total = total;
+            this.state = state;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        synchronized void advance(long bytes) {
+            merged += bytes;
+            notifyAll();
+        }
+
+        /**
+         * 删除状态文件，其它实例据此按文件长度判断合并是否完成
+         */
+        synchronized void complete() {
+            finishedAt = System.currentTimeMillis();
+            if (state.exists() && !state.delete()) {
+                log.error("删除合并状态文件失败：{}", state.getAbsolutePath());
+            }
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            finishedAt = System.currentTimeMillis();
+            writeState(FAILED);
+            notifyAll();
+        }
+
+        /**
+         * 先写临时文件再原子替换，其它实例不会读到写了一半的状态
+         */
+        void writeState(String value) {
+            Path temp = Paths.get(state.getPath() + ".tmp");
+            try {
+                Files.createDirectories(temp.getParent());
+                Files.write(temp, value.getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, state.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.error("写合并状态文件失败：{}", state.getAbsolutePath(), e);
+            }
+        }
+
+        String readState() {
+            try {
+                return new String(Files.readAllBytes(state.toPath()), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                // 合并完成后状态文件被删除
+                return null;
+            }
+        }
+
+        /**
+         * 等待合并超过 position，返回已合并的字节数
+         *
+         * @throws IOException 合并失败，或者等待超时
+         */
+        public synchronized long awaitBeyond(long position, long timeoutMillis) throws IOException, InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (merged <= position && !failed && finishedAt == 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("等待合并超时，" + file.getPath() + "，已合并:" + merged);
+                }
+                wait(remaining);
+            }
+            if (failed) {
+                throw new IOException("合并失败，" + file.getPath());
+            }
+            if (merged <= position) {
+                throw new IOException("合并后的文件小于预期，" + file.getPath() + "，已合并:" + merged);
+            }
+            return merged;
+        }
+
+        synchronized boolean isExpired(long now, long ttlMillis) {
+            return finishedAt > 0 && now - finishedAt > ttlMillis;
+        }
+    }
+
+    /**
+     * 在其它实例上合并的文件，合并线程按顺序写入，文件长度就是已合并的字节数
+     */
+    static class SharedProgress extends Progress {
+
+        SharedProgress(String token, File file, long total, File state) {
+            super(token, file, total, state);
+        }
+
+        @Override
+        public long awaitBeyond(long position, long timeoutMillis) throws IOException, InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (true) {
+                final String state = readState();
+                final long merged = Math.min(getFile().length(), getTotal());
+                if (FAILED.equals(state)) {
+                    throw new IOException("合并失败，" + getFile().getPath());
+                }
+                if (merged > position) {
+                    return merged;
+                }
+                if (!MERGING.equals(state)) {
+                    throw new IOException("合并后的文件小于预期，" + getFile().getPath() + "，已合并:" + merged);
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new IOException("等待合并超时，" + getFile().getPath() + "，已合并:" + merged);
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.jravity.auditadmin.util.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static com.jravity.auditadmin.util.file.AdminFileUtil.TEMP_DIR;
+
+/**
+ * 文件完整性索引(Merkle 树)
+ * 文件按固定大小分块，每块的 SHA-256 作为叶子节点，逐层两两哈希得到根节点。
+ * 索引放在 TEMP_DIR 下的 INDEX_DIR 里，目录结构与文件相同(相对路径 + SUFFIX)，不会混进分片目录的文件列表；
+ * 加载时用叶子重新计算根节点，校验索引本身没有损坏；
+ * 读取文件时只需要校验覆盖读取范围的块，不用重新计算整个文件的哈希
+ *
+ * 索引格式：MAGIC int | 块大小 int | 文件长度 long | 叶子数 int | 叶子哈希 | 根哈希
+ */
+public class MerkleIndex {
+
+    public static final String SUFFIX = ".merkle";
+    public static final String INDEX_DIR = ".merkle-index";
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private static final int MAGIC = 0x4d4b4c31;
+    private static final String ALGORITHM = "SHA-256";
+    private static final int HASH_SIZE = 32;
+
+    /**
+     * 按位置读取文件内容，原始文件和分帧压缩文件各有一种实现
+     */
+    @FunctionalInterface
+    public interface BlockReader {
+        /**
+         * 从 position 开始读满 length 个字节到 buffer
+         */
+        void read(long position, byte[] buffer, int length) throws IOException;
+    }
+
+    private final int blockSize;
+    private final long fileLength;
+    private final byte[][] leaves;
+    private final byte[] root;
+
+    private MerkleIndex(int blockSize, long fileLength, byte[][] leaves) {
+        this.blockSize = blockSize;
+        this.fileLength = fileLength;
+        this.leaves = leaves;
+        this.root = computeRoot(leaves);
+    }
+
+    /**
+     * 文件对应的索引，旧版本放在文件旁边的索引第一次用到时移到 INDEX_DIR
+     */
+    public static File indexFile(File file) {
+        Path root = Paths.get(TEMP_DIR).toAbsolutePath();
+        File index = root.resolve(INDEX_DIR).resolve(root.relativize(file.getAbsoluteFile().toPath()) + SUFFIX).toFile();
+        File legacy = new File(file.getPath() + SUFFIX);
+        if (legacy.isFile() && !index.exists()) {
+            try {
+                Files.createDirectories(index.getParentFile().toPath());
+                Files.move(legacy.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                return legacy;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 索引对应的文件，indexFile 的逆运算
+     */
+    public static File dataFile(File indexFile) {
+        Path indexRoot = Paths.get(TEMP_DIR, INDEX_DIR).toAbsolutePath();
+        String relative = indexRoot.relativize(indexFile.getAbsoluteFile().toPath()).toString();
+        return Paths.get(TEMP_DIR).resolve(relative.substring(0, relative.length() - SUFFIX.length())).toFile();
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    public long fileLength() {
+        return fileLength;
+    }
+
+    public int blockCount() {
+        return leaves.length;
+    }
+
+    /**
+     * 校验一个块，返回是否与索引一致
+     *
+     * @param buffer 长度不小于块大小的缓冲区，校验后保存该块的内容
+     */
+    public boolean verifyBlock(BlockReader reader, int block, byte[] buffer) throws IOException {
+        int length = blockLength(block);
+        reader.read((long) block * blockSize, buffer, length);
+        MessageDigest digest = newDigest();
+        digest.update(buffer, 0, length);
+        return MessageDigest.isEqual(digest.digest(), leaves[block]);
+    }
+
+    /**
+     * 一次下载用一个 VerifiedReader，各个 Range 共用同一个块缓冲区
+     */
+    public VerifiedReader open(BlockReader reader) {
+        return new VerifiedReader(reader);
+    }
+
+    /**
+     * 按块校验后读取文件，缓冲区里保留最近校验过的块，多个 Range 落在同一块时不重复读取和校验；
+     * 不是线程安全的
+     */
+    public class VerifiedReader {
+        private final BlockReader reader;
+        private byte[] buffer;
+        private int bufferedBlock = -1;
+
+        private VerifiedReader(BlockReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * 把 [start, start + length) 范围的内容写入 output，只读取并校验覆盖这个范围的块
+         * 发现损坏的块时抛出 IOException，已经写出的内容都是校验通过的
+         */
+        public void copy(OutputStream output, long start, long length) throws IOException {
+            long end = Math.min(start + length, fileLength);
+            for (int block = (int) (start / blockSize); start < end; block++) {
+                if (block != bufferedBlock) {
+                    if (buffer == null) {
+                        buffer = new byte[blockSize];
+                    }
+                    bufferedBlock = -1;
+                    if (!verifyBlock(reader, block, buffer)) {
+                        throw new IOException("文件块校验失败，块序号：" + block);
+                    }
+                    bufferedBlock = block;
+                }
+                long blockStart = (long) block * blockSize;
+                int from = (int) (start - blockStart);
+                int to = (int) Math.min(blockLength(block), end - blockStart);
+                output.write(buffer, from, to - from);
+                start = blockStart + to;
+            }
+        }
+    }
+
+    public void write(File indexFile) throws IOException {
+        Files.createDirectories(indexFile.getAbsoluteFile().getParentFile().toPath());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(blockSize);
+            out.writeLong(fileLength);
+            out.writeInt(leaves.length);
+            for (byte[] leaf : leaves) {
+                out.write(leaf);
+            }
+            out.write(root);
+        }
+    }
+
+    /**
+     * 加载索引，根节点与叶子不一致说明索引文件损坏
+     */
+    public static MerkleIndex read(File indexFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("不是文件完整性索引：" + indexFile.getPath());
+            }
+            int blockSize = in.readInt();
+            long fileLength = in.readLong();
+            byte[][] leaves = new byte[in.readInt()][HASH_SIZE];
+            for (byte[] leaf : leaves) {
+                in.readFully(leaf);
+            }
+            byte[] root = new byte[HASH_SIZE];
+            in.readFully(root);
+            MerkleIndex index = new MerkleIndex(blockSize, fileLength, leaves);
+            if (!Arrays.equals(root, index.root)) {
+                throw new IOException("文件完整性索引已损坏：" + indexFile.getPath());
+            }
+            return index;
+        }
+    }
+
+    private int blockLength(int block) {
+        return (int) Math.min(blockSize, fileLength - (long) block * blockSize);
+    }
+
+    private static byte[] computeRoot(byte[][] leaves) {
+        if (leaves.length == 0) {
+            return newDigest().digest();
+        }
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] parent = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parent.length; i++) {
+                MessageDigest digest = newDigest();
+                digest.update(level[2 * i]);
+                // 奇数个节点时最后一个节点单独上提
+                if (2 * i + 1 < level.length) {
+                    digest.update(level[2 * i + 1]);
+                }
+                parent[i] = digest.digest();
+            }
+            level = parent;
+        }
+        return level[0];
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 边写文件边计算块哈希，避免合并后再读一遍文件
+     */
+    public static class Builder {
+        private final int blockSize;
+        private final MessageDigest digest = newDigest();
+        private byte[][] leaves = new byte[16][];
+        private int leafCount;
+        private int blockFill;
+        private long fileLength;
+
+        public Builder(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        public void update(byte[] buffer, int offset, int length) {
+            fileLength += length;
+            while (length > 0) {
+                int n = Math.min(length, blockSize - blockFill);
+                digest.update(buffer, offset, n);
+                blockFill += n;
+                offset += n;
+                length -= n;
+                if (blockFill == blockSize) {
+                    finishBlock();
+                }
+            }
+        }
+
+        public MerkleIndex build() {
+            if (blockFill > 0) {
+                finishBlock();
+            }
+            return new MerkleIndex(blockSize, fileLength, Arrays.copyOf(leaves, leafCount));
+        }
+
+        private void finishBlock() {
+            if (leafCount == leaves.length) {
+                leaves = Arrays.copyOf(leaves, leafCount * 2);
+            }
+            leaves[leafCount++] = digest.digest();
+            blockFill = 0;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.jravity.auditadmin.controller;
+
+/**
+ * HTTP Range 请求头解析
+ * 一次扫描解析 "bytes=n-n,n-n,..."，结果是 [start0, end0, start1, end1, ...] 的 long 数组，
+ * 除结果数组外不创建任何对象；分段数和分段重叠的字节数都有上限，防止一个请求头放大成大量的 CPU 和磁盘读取
+ */
+final class RangeHeaderParser {
+
+    private static final String PREFIX = "bytes=";
+    /**
+     * 超过18位的数字可能溢出 long，直接视为非法
+     */
+    private static final int MAX_DIGITS = 18;
+
+    private RangeHeaderParser() {
+    }
+
+    /**
+     * 解析 Range 请求头
+     * 对于长度为100的文件：50-80 (50 到 80)，40- (40 到 99)，-20 (80 到 99)；
+     * 结束位置超出文件长度时取文件末尾，后缀长度超出文件长度时从0开始
+     *
+     * @param header     Range 请求头
+     * @param length     文件长度
+     * @param maxParts   最多允许的分段数
+     * @param maxOverlap 所有分段长度之和最多可以超出文件长度多少字节
+     * @return 每个分段的起止位置(包含结束位置)，格式错误、范围无效或者超出限制时返回 null
+     */
+    static long[] parse(String header, long length, int maxParts, long maxOverlap) {
+        if (header == null || !header.startsWith(PREFIX) || length <= 0) {
+            return null;
+        }
+        final int limit = header.length();
+        int parts = 1;
+        for (int i = PREFIX.length(); i < limit; i++) {
+            if (header.charAt(i) == ',' && ++parts > maxParts) {
+                return null;
+            }
+        }
+
+        final long[] ranges = new long[parts * 2];
+        long total = 0;
+        int pos = PREFIX.length();
+        for (int part = 0; part < parts; part++) {
+            pos = skipSpaces(header, pos, limit);
+            int startBegin = pos;
+            long start = 0;
+            while (pos < limit && isDigit(header.charAt(pos))) {
+                start = start * 10 + (header.charAt(pos++) - '0');
+            }
+            int startDigits = pos - startBegin;
+            if (startDigits > MAX_DIGITS || pos >= limit || header.charAt(pos++) != '-') {
+                return null;
+            }
+            int endBegin = pos;
+            long end = 0;
+            while (pos < limit && isDigit(header.charAt(pos))) {
+                end = end * 10 + (header.charAt(pos++) - '0');
+            }
+            int endDigits = pos - endBegin;
+            if (endDigits > MAX_DIGITS) {
+                return null;
+            }
+            pos = skipSpaces(header, pos, limit);
+            if (pos < limit && header.charAt(pos++) != ',') {
+                return null;
+            }
+
+            if (startDigits == 0) {
+                // 未设置起始点，取最后 end 个字节
+                if (endDigits == 0 || end == 0) {
+                    return null;
+                }
+                start = Math.max(0, length - end);
+                end = length - 1;
+            } else if (endDigits == 0 || end > length - 1) {
+                end = length - 1;
+            }
+            if (start > end) {
+                return null;
+            }
+            total += end - start + 1;
+            if (total - length > maxOverlap) {
+                return null;
+            }
+            ranges[part * 2] = start;
+            ranges[part * 2 + 1] = end;
+        }
+        return pos == limit ? ranges : null;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int skipSpaces(String header, int pos, int limit) {
+        while (pos < limit && header.charAt(pos) == ' ') {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,157 @@
+package com.jravity.auditadmin.config;
+
+import com.jravity.auditadmin.util.file.FrameCompressedFile;
+import com.jravity.auditadmin.util.file.MerkleIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.jravity.auditadmin.util.file.AdminFileUtil.TEMP_DIR;
+
+/**
+ * 后台按完整性索引逐块校验已合并的文件
+ * 每次最多读取 bytesPerRun 字节，记住校验到的文件和块，下次从断点继续，所有文件校验一遍后重新开始；
+ * 索引按名字顺序分批扫描，每批最多 indexesPerWalk 个，记住上一批最后一个索引，下一批从它之后继续，不会每次遍历整个 INDEX_DIR
+ */
+@Slf4j
+@Configuration
+public class SchedulerFileScrubConfig {
+
+    @Value("${cloud-file.scrub.bytes-per-run:268435456}")
+    private long bytesPerRun;
+
+    @Value("${cloud-file.scrub.indexes-per-walk:1000}")
+    private int indexesPerWalk;
+
+    private final Deque<File> pendingIndexes = new ArrayDeque<>();
+    /**
+     * 上一批扫描到的最后一个索引，为空时从头开始新的一轮
+     */
+    private Path walkCursor;
+    private File currentIndex;
+    private int nextBlock;
+
+    @Scheduled(fixedDelayString = "${cloud-file.scrub.interval:60000}")
+    public synchronized void scrub() {
+        long budget = bytesPerRun;
+        boolean walked = false;
+        while (budget > 0) {
+            if (currentIndex == null) {
+                // 每次最多扫描一次目录，本轮剩下的文件都无需读取时直接结束，不重复校验同一批文件
+                if (pendingIndexes.isEmpty()) {
+                    if (walked || !walkIndexes()) {
+                        return;
+                    }
+                    walked = true;
+                }
+                currentIndex = pendingIndexes.poll();
+                nextBlock = 0;
+            }
+            try {
+                budget -= scrubCurrent(budget);
+            } catch (IOException e) {
+                log.error("校验文件失败，{}", currentIndex.getAbsolutePath(), e);
+                currentIndex = null;
+            }
+        }
+    }
+
+    /**
+     * 从上一批的最后一个索引之后扫描下一批，已经扫描到末尾时从头开始新的一轮，没有找到任何索引时返回 false
+     */
+    private boolean walkIndexes() {
+        Path root = Paths.get(TEMP_DIR, MerkleIndex.INDEX_DIR).toAbsolutePath();
+        if (!Files.isDirectory(root)) {
+            return false;
+        }
+        try {
+            collectIndexes(root, walkCursor);
+            if (pendingIndexes.isEmpty() && walkCursor != null) {
+                collectIndexes(root, null);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.error("扫描完整性索引失败", e);
+            return false;
+        }
+        walkCursor = pendingIndexes.isEmpty() ? null : pendingIndexes.peekLast().toPath();
+        return !pendingIndexes.isEmpty();
+    }
+
+    /**
+     * 按名字顺序深度优先遍历 dir，cursor 在 dir 下面时跳过它和它之前的条目，收集到 indexesPerWalk 个索引为止
+     */
+    private void collectIndexes(Path dir, Path cursor) throws IOException {
+        List<Path> children;
+        try (Stream<Path> list = Files.list(dir)) {
+            children = list.sorted(Comparator.comparing(p -> p.getFileName().toString())).collect(Collectors.toList());
+        }
+        String skipTo = cursor == null ? null : cursor.getName(dir.getNameCount()).toString();
+        for (Path child : children) {
+            if (pendingIndexes.size() >= indexesPerWalk) {
+                return;
+            }
+            String name = child.getFileName().toString();
+            int order = skipTo == null ? 1 : name.compareTo(skipTo);
+            if (order < 0) {
+                continue;
+            }
+            if (Files.isDirectory(child)) {
+                collectIndexes(child, order == 0 ? cursor : null);
+            } else if (order > 0 && name.endsWith(MerkleIndex.SUFFIX)) {
+                pendingIndexes.add(child.toFile());
+            }
+        }
+    }
+
+    /**
+     * 从断点开始校验当前文件，返回本次读取的字节数
+     */
+    private long scrubCurrent(long budget) throws IOException {
+        File file = MerkleIndex.dataFile(currentIndex);
+        File compressedFile = new File(file.getPath() + FrameCompressedFile.SUFFIX);
+        boolean compressed = !file.exists() && compressedFile.isFile();
+        if (!file.exists() && !compressed) {
+            // 文件已经被清理，索引一并删除，避免下一轮再次扫描到
+            Files.deleteIfExists(currentIndex.toPath());
+            currentIndex = null;
+            return 0;
+        }
+
+        MerkleIndex index = MerkleIndex.read(currentIndex);
+        long read = 0;
+        try (RandomAccessFile input = new RandomAccessFile(compressed ? compressedFile : file, "r");
+             FrameCompressedFile frames = compressed ? FrameCompressedFile.open(input) : null) {
+            MerkleIndex.BlockReader reader = compressed ? frames::read : (position, buffer, len) -> {
+                input.seek(position);
+                input.readFully(buffer, 0, len);
+            };
+            byte[] buffer = new byte[index.blockSize()];
+            while (nextBlock < index.blockCount() && read < budget) {
+                if (!index.verifyBlock(reader, nextBlock, buffer)) {
+                    log.error("文件块校验失败，{}，块序号：{}", file.getAbsolutePath(), nextBlock);
+                }
+                read += index.blockSize();
+                nextBlock++;
+            }
+        }
+        if (nextBlock >= index.blockCount()) {
+            currentIndex = null;
+        }
+        return read;
+    }
+}
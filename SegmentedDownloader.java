@@ -0,0 +1,223 @@
+package com.jravity.auditadmin.client;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 基于 downloadFile 的 Range 支持的分段并行下载客户端
+ * 文件按 segmentSize 分段，最多 connections 个连接同时下载，每段用定位写入预分配好的本地文件。
+ * 已完成的分段记录在 目标文件名 + SUFFIX 中，中断后重新调用 download 只下载缺失的分段，全部完成后删除记录文件
+ */
+@Slf4j
+public class SegmentedDownloader {
+
+    public static final String SUFFIX = ".segments";
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("^bytes (\\d+)-(\\d+)/(\\d+)$");
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final int connections;
+    private final long segmentSize;
+    private final int maxRetries;
+    private final HttpClient httpClient;
+
+    public SegmentedDownloader(int connections, long segmentSize, int maxRetries) {
+        this.connections = connections;
+        this.segmentSize = segmentSize;
+        this.maxRetries = maxRetries;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    /**
+     * 下载 uri 指向的文件到 target
+     *
+     * @param uri downloadFile 的完整地址，包括 fileId 等参数
+     */
+    public void download(URI uri, Path target) throws IOException, InterruptedException {
+        final long total = fetchLength(uri);
+        final SegmentState state = SegmentState.open(Paths.get(target + SUFFIX), total, segmentSize);
+        final ExecutorService pool = Executors.newFixedThreadPool(connections);
+        try (RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")) {
+            // 预分配本地文件，分段可以直接写到各自的位置
+            if (file.length() != total) {
+                file.setLength(total);
+            }
+            final FileChannel channel = file.getChannel();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int segment = state.nextMissing(0); segment >= 0; segment = state.nextMissing(segment + 1)) {
+                final int index = segment;
+                futures.add(pool.submit(() -> {
+                    downloadSegment(uri, channel, index, total);
+                    state.complete(index);
+                    return null;
+                }));
+            }
+            log.info("分段下载开始，{}，文件大小:{}，待下载分段数:{}", uri, total, futures.size());
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("分段下载失败，已完成的分段在下次下载时跳过", e.getCause());
+                }
+            }
+            channel.force(true);
+        } finally {
+            pool.shutdownNow();
+            state.close();
+        }
+        state.delete();
+        log.info("分段下载完成，{}", target);
+    }
+
+    /**
+     * 请求第一个字节，从 Content-Range 中取文件长度
+     */
+    private long fetchLength(URI uri) throws IOException, InterruptedException {
+        HttpResponse<Void> response = httpClient.send(HttpRequest.newBuilder(uri).header("Range", "bytes=0-0").build(),
+                HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 206) {
+            throw new IOException("服务端不支持Range下载，状态码：" + response.statusCode());
+        }
+        return parseContentRange(response)[2];
+    }
+
+    private void downloadSegment(URI uri, FileChannel channel, int segment, long total) throws Exception {
+        final long start = segment * segmentSize;
+        final long end = Math.min(start + segmentSize, total) - 1;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                HttpRequest request = HttpRequest.newBuilder(uri).header("Range", "bytes=" + start + "-" + end).build();
+                HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream in = response.body()) {
+                    long[] contentRange = parseContentRange(response);
+                    if (response.statusCode() != 206 || contentRange[0] != start || contentRange[1] != end) {
+                        throw new IOException("分段响应不匹配，分段:" + segment + "，状态码:" + response.statusCode());
+                    }
+                    writeAt(in, channel, start, end - start + 1);
+                }
+                return;
+            } catch (IOException e) {
+                if (attempt > maxRetries) {
+                    throw e;
+                }
+                log.warn("分段下载失败，第{}次重试，分段:{}", attempt, segment, e);
+            }
+        }
+    }
+
+    /**
+     * 把响应体按位置写入文件，不依赖文件指针，多个分段可以并发写
+     */
+    private static void writeAt(InputStream in, FileChannel channel, long position, long length) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long written = 0;
+        int read;
+        while (written < length && (read = in.read(buffer, 0, (int) Math.min(buffer.length, length - written))) != -1) {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+            while (byteBuffer.hasRemaining()) {
+                written += channel.write(byteBuffer, position + written);
+            }
+        }
+        if (written != length) {
+            throw new IOException("分段数据不完整，期望:" + length + "，实际:" + written);
+        }
+    }
+
+    private static long[] parseContentRange(HttpResponse<?> response) throws IOException {
+        String contentRange = response.headers().firstValue("Content-Range")
+                .orElseThrow(() -> new IOException("响应缺少Content-Range"));
+        Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+        if (!matcher.matches()) {
+            throw new IOException("无法解析Content-Range：" + contentRange);
+        }
+        return new long[]{Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)),
+                Long.parseLong(matcher.group(3))};
+    }
+
+    /**
+     * 已完成分段的记录文件：文件长度 long | 分段大小 long | 每个分段一个字节，1 表示已完成
+     */
+    private static class SegmentState {
+        private static final int HEADER_SIZE = 16;
+
+        private final Path path;
+        private final RandomAccessFile file;
+        private final BitSet completed;
+        private final int segmentCount;
+
+        private SegmentState(Path path, RandomAccessFile file, BitSet completed, int segmentCount) {
+            this.path = path;
+            this.file = file;
+            this.completed = completed;
+            this.segmentCount = segmentCount;
+        }
+
+        static SegmentState open(Path path, long total, long segmentSize) throws IOException {
+            int segmentCount = (int) ((total + segmentSize - 1) / segmentSize);
+            RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+            BitSet completed = new BitSet(segmentCount);
+            if (file.length() == HEADER_SIZE + segmentCount && file.readLong() == total
+                    && file.readLong() == segmentSize) {
+                byte[] flags = new byte[segmentCount];
+                file.readFully(flags);
+                for (int i = 0; i < segmentCount; i++) {
+                    if (flags[i] == 1) {
+                        completed.set(i);
+                    }
+                }
+                log.info("继续上次的分段下载，已完成分段数:{}/{}", completed.cardinality(), segmentCount);
+            } else {
+                // 没有记录或者文件已经变化，重新下载
+                file.setLength(0);
+                file.writeLong(total);
+                file.writeLong(segmentSize);
+                file.write(new byte[segmentCount]);
+            }
+            return new SegmentState(path, file, completed, segmentCount);
+        }
+
+        synchronized int nextMissing(int from) {
+            int next = completed.nextClearBit(from);
+            return next < segmentCount ? next : -1;
+        }
+
+        synchronized void complete(int segment) throws IOException {
+            completed.set(segment);
+            file.seek(HEADER_SIZE + segment);
+            file.write(1);
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+
+        void delete() throws IOException {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.jravity.auditadmin.executor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CloudFileIoExecutor 的基准测试：clients 个慢客户端同时下载
+ * 每个客户端分 writes 次读取 64K，每次读完后等待 clientDelayMillis 模拟慢速写回客户端；
+ * 一次操作是所有客户端都下载完成，对比固定线程池与虚拟线程的完成时间。
+ * VIRTUAL 模式需要 JDK 21，平台线程数用 -Dbench.platform.threads 覆盖，默认 200
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CloudFileIoBenchmark {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int FILE_BLOCKS = 256;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public String mode;
+
+    @Param({"10000"})
+    public int clients;
+
+    @Param({"4"})
+    public int writes;
+
+    @Param({"50"})
+    public long clientDelayMillis;
+
+    private File file;
+    private FileChannel channel;
+    private CloudFileIoExecutor executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("cloud-file-io", ".bin");
+        byte[] block = new byte[BLOCK_SIZE];
+        new Random(BLOCK_SIZE).nextBytes(block);
+        try (FileChannel out = new RandomAccessFile(file, "rw").getChannel()) {
+            for (int i = 0; i < FILE_BLOCKS; i++) {
+                ByteBuffer buffer = ByteBuffer.wrap(block);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        }
+        channel = new RandomAccessFile(file, "r").getChannel();
+        int platformThreads = Integer.getInteger("bench.platform.threads", 200);
+        // 下载许可不设上限，只比较线程模型
+        executor = new CloudFileIoExecutor(CloudFileIoExecutor.Mode.valueOf(mode), platformThreads,
+                1, 1, Integer.MAX_VALUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.shutdown();
+        channel.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Benchmark
+    public long slowClients() {
+        List<Mono<Long>> downloads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            downloads.add(executor.download(() -> slowDownload(client)));
+        }
+        return Flux.merge(Flux.fromIterable(downloads), clients).reduce(0L, Long::sum).block();
+    }
+
+    private long slowDownload(int client) throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        long read = 0;
+        for (int i = 0; i < writes; i++) {
+            buffer.clear();
+            long position = (long) ((client + i) % FILE_BLOCKS) * BLOCK_SIZE;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + buffer.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+            read += buffer.position();
+            TimeUnit.MILLISECONDS.sleep(clientDelayMillis);
+        }
+        return read;
+    }
+}
@@ -0,0 +1,120 @@
+package com.jravity.auditadmin.service.impl;
+
+import com.jravity.auditadmin.config.property.TxAsrProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CloudFileServiceImpl 合并分片循环的基准测试
+ * 对比现有的堆内缓冲区拷贝(mergeChunks)与 FileChannel.transferFrom 拷贝
+ * 运行时加上 -prof gc 可以得到每次合并的分配量
+ *
+ * tmpfs 目录默认为 /dev/shm，磁盘目录默认为 java.io.tmpdir，可以用 -Dbench.tmpfs.dir / -Dbench.disk.dir 覆盖
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MergeFileBenchmark {
+
+    @Param({"TMPFS", "DISK"})
+    public String storage;
+
+    @Param({"10", "100"})
+    public int chunkCount;
+
+    @Param({"1048576", "5242880"})
+    public int chunkSize;
+
+    private Path dir;
+    private List<File> chunks;
+    private File target;
+    private final byte[] temp = new byte[TxAsrProperties.BYTE_SIZE];
+
+    @Setup(Level.Trial)
+    public void createChunks() throws IOException {
+        Path base = new File("TMPFS".equals(storage)
+                ? System.getProperty("bench.tmpfs.dir", "/dev/shm")
+                : System.getProperty("bench.disk.dir", System.getProperty("java.io.tmpdir"))).toPath();
+        dir = Files.createTempDirectory(base, "merge-file");
+        byte[] data = new byte[chunkSize];
+        Random random = new Random(chunkSize);
+        chunks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            random.nextBytes(data);
+            File chunk = dir.resolve(String.valueOf(i)).toFile();
+            try (FileOutputStream out = new FileOutputStream(chunk)) {
+                out.write(data);
+            }
+            chunks.add(chunk);
+        }
+        target = dir.resolve("merged").toFile();
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteTarget() throws IOException {
+        Files.deleteIfExists(target.toPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteChunks() throws IOException {
+        Files.deleteIfExists(target.toPath());
+        for (File chunk : chunks) {
+            Files.deleteIfExists(chunk.toPath());
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public long heapMerge() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(target, "rw")) {
+            CloudFileServiceImpl.mergeChunks(chunks, randomAccessFile, temp);
+            return randomAccessFile.length();
+        }
+    }
+
+    @Benchmark
+    public long channelMerge() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(target, "rw")) {
+            FileChannel out = randomAccessFile.getChannel();
+            long position = 0;
+            for (File chunk : chunks) {
+                try (FileChannel in = new FileInputStream(chunk).getChannel()) {
+                    long size = in.size();
+                    long copied = 0;
+                    while (copied < size) {
+                        copied += out.transferFrom(in, position + copied, size - copied);
+                    }
+                    position += size;
+                }
+            }
+            return position;
+        }
+    }
+}
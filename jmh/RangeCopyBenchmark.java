@@ -0,0 +1,175 @@
+package com.jravity.auditadmin.controller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CloudFileController.Range.copy 的基准测试
+ * 对比现有的堆内缓冲区拷贝与 FileChannel.transferTo 拷贝，覆盖整个文件、单个Range、多个Range三种下载路径
+ * 运行时加上 -prof gc 可以得到每次操作的分配量
+ *
+ * tmpfs 目录默认为 /dev/shm，磁盘目录默认为 java.io.tmpdir，可以用 -Dbench.tmpfs.dir / -Dbench.disk.dir 覆盖
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RangeCopyBenchmark {
+
+    /**
+     * 多Range下载时请求的分段数和每段长度
+     */
+    private static final int MULTI_RANGE_PARTS = 8;
+    private static final int MULTI_RANGE_LENGTH = 64 * 1024;
+
+    @Param({"TMPFS", "DISK"})
+    public String storage;
+
+    @Param({"1048576", "67108864", "536870912"})
+    public long fileSize;
+
+    private File file;
+    private RandomAccessFile input;
+    private long[][] multiRanges;
+    private final DiscardOutputStream output = new DiscardOutputStream();
+    private WritableByteChannel outputChannel;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = createDataFile(storage, fileSize);
+        input = new RandomAccessFile(file, "r");
+        outputChannel = Channels.newChannel(output);
+        multiRanges = new long[MULTI_RANGE_PARTS][];
+        long step = fileSize / MULTI_RANGE_PARTS;
+        for (int i = 0; i < MULTI_RANGE_PARTS; i++) {
+            long start = i * step;
+            multiRanges[i] = new long[]{start, Math.min(MULTI_RANGE_LENGTH, fileSize - start)};
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        input.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Benchmark
+    public long heapFull() throws IOException {
+        CloudFileController.Range.copy(input, output, fileSize, 0, fileSize);
+        return output.drain();
+    }
+
+    @Benchmark
+    public long channelFull() throws IOException {
+        transfer(input.getChannel(), outputChannel, 0, fileSize);
+        return output.drain();
+    }
+
+    @Benchmark
+    public long heapSingle() throws IOException {
+        long start = fileSize / 2;
+        CloudFileController.Range.copy(input, output, fileSize, start, fileSize - start);
+        return output.drain();
+    }
+
+    @Benchmark
+    public long channelSingle() throws IOException {
+        long start = fileSize / 2;
+        transfer(input.getChannel(), outputChannel, start, fileSize - start);
+        return output.drain();
+    }
+
+    @Benchmark
+    public long heapMulti() throws IOException {
+        for (long[] r : multiRanges) {
+            CloudFileController.Range.copy(input, output, fileSize, r[0], r[1]);
+        }
+        return output.drain();
+    }
+
+    @Benchmark
+    public long channelMulti() throws IOException {
+        FileChannel channel = input.getChannel();
+        for (long[] r : multiRanges) {
+            transfer(channel, outputChannel, r[0], r[1]);
+        }
+        return output.drain();
+    }
+
+    private static void transfer(FileChannel channel, WritableByteChannel target, long start, long length)
+            throws IOException {
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            position += channel.transferTo(position, end - position, target);
+        }
+    }
+
+    static File createDataFile(String storage, long size) throws IOException {
+        File dir = new File("TMPFS".equals(storage)
+                ? System.getProperty("bench.tmpfs.dir", "/dev/shm")
+                : System.getProperty("bench.disk.dir", System.getProperty("java.io.tmpdir")));
+        File file = File.createTempFile("range-copy", ".bin", dir);
+        byte[] block = new byte[1024 * 1024];
+        new Random(size).nextBytes(block);
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            long written = 0;
+            while (written < size) {
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written));
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+            channel.force(true);
+        }
+        return file;
+    }
+
+    /**
+     * 丢弃写入内容、只记录字节数的输出流，避免把 ServletOutputStream 的开销算进来
+     */
+    static class DiscardOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        long drain() {
+            long c = count;
+            count = 0;
+            return c;
+        }
+    }
+}
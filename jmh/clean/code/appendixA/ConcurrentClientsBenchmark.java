@@ -0,0 +1,127 @@
+package clean.code.appendixA;
+
+import clean.code.appendixA.virtual.VirtualThreads;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time for N clients that all connect at once to get their reply, for the
+ * thread-per-connection, selector and virtual-thread servers. Every server
+ * spends one second "processing" each message, so the ideal score is just
+ * over 1000 ms whatever the client count.
+ *
+ * Needs JDK 21. 50k clients need `ulimit -n` above 100k; clients bind to
+ * several loopback addresses so they don't run out of ephemeral ports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xss256k"})
+public class ConcurrentClientsBenchmark {
+    private static final int PORT = 8019;
+    private static final int TIMEOUT = 2000;
+    private static final int LOOPBACK_ADDRESSES = 8;
+
+    @Param({"THREADED", "NIO", "VIRTUAL"})
+    public String server;
+
+    @Param({"1000", "10000", "50000"})
+    public int clients;
+
+    private Runnable running;
+    private Runnable stop;
+    private Thread serverThread;
+    private ExecutorService clientThreads;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        // the servers print several lines per message
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        switch (server) {
+            case "THREADED": {
+                clean.code.appendixA.threaded.Server s = new clean.code.appendixA.threaded.Server(PORT, TIMEOUT);
+                running = s;
+                stop = s::stopProcessing;
+                break;
+            }
+            case "NIO": {
+                clean.code.appendixA.nio.Server s = new clean.code.appendixA.nio.Server(PORT, TIMEOUT);
+                running = s;
+                stop = s::stopProcessing;
+                break;
+            }
+            default: {
+                clean.code.appendixA.virtual.Server s = new clean.code.appendixA.virtual.Server(PORT, TIMEOUT);
+                running = s;
+                stop = s::stopProcessing;
+            }
+        }
+        serverThread = new Thread(running);
+        serverThread.start();
+        clientThreads = VirtualThreads.newPerTaskExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws InterruptedException {
+        clientThreads.shutdownNow();
+        stop.run();
+        serverThread.join();
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public int allClients() throws Exception {
+        AtomicInteger failures = new AtomicInteger();
+        List<Future<?>> replies = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            replies.add(clientThreads.submit(() -> {
+                try {
+                    connectSendReceive(client);
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+        for (Future<?> reply : replies)
+            reply.get();
+        if (failures.get() > 0)
+            throw new IllegalStateException(failures.get() + " clients failed");
+        return clients;
+    }
+
+    private static void connectSendReceive(int i) throws IOException {
+        InetAddress local = InetAddress.getByName("127.0.0." + (1 + i % LOOPBACK_ADDRESSES));
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), PORT, local, 0)) {
+            MessageUtils.sendMessage(socket, Integer.toString(i));
+            MessageUtils.getMessage(socket);
+        }
+    }
+}
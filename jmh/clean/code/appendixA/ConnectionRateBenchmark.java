@@ -0,0 +1,83 @@
+package clean.code.appendixA;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short connections per second (connect, one message, close) against the
+ * reactor server, to see how accepts scale with the number of loops with
+ * SO_REUSEPORT and with a single acceptor. Compare loops against the
+ * available cores; clients bind several loopback addresses so a long run
+ * does not exhaust ephemeral ports on TIME_WAIT sockets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class ConnectionRateBenchmark {
+    private static final int PORT = 8023;
+    private static final int TIMEOUT = 2000;
+    private static final int LOOPBACK_ADDRESSES = 16;
+
+    @Param({"1", "2", "4", "8"})
+    public int loops;
+
+    @Param({"true", "false"})
+    public boolean reusePort;
+
+    private clean.code.appendixA.reactor.Server server;
+    private Thread serverThread;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        server = new clean.code.appendixA.reactor.Server(PORT, TIMEOUT, loops, reusePort,
+                new DelayedEchoHandler(0));
+        serverThread = new Thread(server);
+        serverThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws InterruptedException {
+        server.stopProcessing();
+        serverThread.join();
+    }
+
+    @State(Scope.Thread)
+    public static class ClientAddress {
+        InetAddress local;
+
+        @Setup(Level.Trial)
+        public void pick() throws IOException {
+            int index = (int) (Thread.currentThread().getId() % LOOPBACK_ADDRESSES);
+            local = InetAddress.getByName("127.0.0." + (1 + index));
+        }
+    }
+
+    @Benchmark
+    public String connectSendClose(ClientAddress client) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), PORT, client.local, 0)) {
+            MessageUtils.sendMessage(socket, "message");
+            return MessageUtils.getMessage(socket);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package clean.code.appendixA;
+
+import clean.code.appendixA.client.Connection;
+import clean.code.appendixA.client.ConnectionPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second against threaded.Server with no processing delay:
+ * a new connection per message, a pooled keep-alive connection per message,
+ * and batches of PIPELINE_DEPTH messages pipelined on a pooled connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class KeepAliveBenchmark {
+    private static final int CLOSE_PORT = 8021;
+    private static final int KEEP_ALIVE_PORT = 8022;
+    private static final int TIMEOUT = 2000;
+    private static final int PIPELINE_DEPTH = 16;
+
+    private clean.code.appendixA.threaded.Server closeServer;
+    private clean.code.appendixA.threaded.Server keepAliveServer;
+    private Thread closeThread;
+    private Thread keepAliveThread;
+    private ConnectionPool pool;
+    private PrintStream originalOut;
+    private List<String> batch;
+
+    @Setup(Level.Trial)
+    public void startServers() throws IOException {
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        closeServer = new clean.code.appendixA.threaded.Server(CLOSE_PORT, TIMEOUT, false, 0);
+        keepAliveServer = new clean.code.appendixA.threaded.Server(KEEP_ALIVE_PORT, TIMEOUT, true, 0);
+        closeThread = new Thread(closeServer);
+        keepAliveThread = new Thread(keepAliveServer);
+        closeThread.start();
+        keepAliveThread.start();
+        pool = new ConnectionPool("localhost", KEEP_ALIVE_PORT, 8);
+        batch = new ArrayList<>();
+        for (int i = 0; i < PIPELINE_DEPTH; i++)
+            batch.add(Integer.toString(i));
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServers() throws InterruptedException {
+        pool.close();
+        closeServer.stopProcessing();
+        keepAliveServer.stopProcessing();
+        closeThread.join();
+        keepAliveThread.join();
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public String connectPerMessage() throws IOException {
+        try (Socket socket = new Socket("localhost", CLOSE_PORT)) {
+            MessageUtils.sendMessage(socket, "message");
+            return MessageUtils.getMessage(socket);
+        }
+    }
+
+    @Benchmark
+    public String pooledConnection() throws Exception {
+        return pool.withConnection(1, TimeUnit.SECONDS, connection -> connection.sendAndReceive("message"));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public List<String> pipelined() throws Exception {
+        return pool.withConnection(1, TimeUnit.SECONDS, (Connection connection) -> connection.pipeline(batch));
+    }
+}
@@ -0,0 +1,86 @@
+package clean.code.appendixA;
+
+import clean.code.appendixA.nio.BufferPool;
+import clean.code.appendixA.nio.FrameCodec;
+import clean.code.appendixA.nio.MessageFrames;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding one received frame and framing one reply, without sockets, for
+ * the stream-based MessageUtils, the heap String frames used by nio.Server,
+ * and the pooled direct buffer codec used with a BufferMessageHandler.
+ * Run with -prof gc: gc.alloc.rate.norm is the allocation per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+    @Param({"16", "1024", "8192"})
+    public int messageLength;
+
+    private byte[] received;
+    private String message;
+    private ByteBuffer reply;
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    private final BufferPool pool = new BufferPool(16 * 1024, 16);
+    private final ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_BYTES);
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+
+    @Setup(Level.Trial)
+    public void createMessage() throws IOException {
+        char[] chars = new char[messageLength];
+        Arrays.fill(chars, 'x');
+        message = new String(chars);
+        received = MessageUtils.encode(message);
+        reply = ByteBuffer.allocateDirect(messageLength);
+    }
+
+    @Benchmark
+    public int streams() throws IOException {
+        String decoded = MessageUtils.read(new ByteArrayInputStream(received), MessageUtils.Framing.LENGTH_PREFIXED);
+        sink.reset();
+        MessageUtils.write(sink, decoded, MessageUtils.Framing.LENGTH_PREFIXED);
+        return sink.size();
+    }
+
+    @Benchmark
+    public int heapFrames() throws IOException {
+        MessageFrames frames = MessageFrames.create(MessageUtils.Framing.LENGTH_PREFIXED);
+        String decoded = frames.decode(ByteBuffer.wrap(received));
+        return frames.encode(decoded).remaining();
+    }
+
+    @Benchmark
+    public int pooledDirect() throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        buffer.put(received);
+        ByteBuffer view = FrameCodec.decode(buffer);
+        reply.clear();
+        reply.put(view).flip();
+        ByteBuffer[] framed = FrameCodec.frame(header, reply, frame);
+        int length = framed[0].remaining() + framed[1].remaining();
+        pool.release(buffer);
+        return length;
+    }
+}
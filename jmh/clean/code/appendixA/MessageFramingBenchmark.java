@@ -0,0 +1,84 @@
+package clean.code.appendixA;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of one message over a loopback connection to an echo thread,
+ * with each MessageUtils framing. Bytes on the wire per message are printed
+ * at setup; run with -prof gc for allocations per round trip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageFramingBenchmark {
+    @Param({"LENGTH_PREFIXED", "OBJECT_STREAM"})
+    public MessageUtils.Framing framing;
+
+    @Param({"8", "1024", "16384"})
+    public int messageLength;
+
+    private String message;
+    private ServerSocket serverSocket;
+    private Socket client;
+    private Thread echo;
+
+    @Setup(Level.Trial)
+    public void connect() throws IOException {
+        char[] chars = new char[messageLength];
+        Arrays.fill(chars, 'x');
+        message = new String(chars);
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        MessageUtils.write(wire, message, framing);
+        System.out.printf("%s, %d character message: %d bytes on the wire\n", framing, messageLength, wire.size());
+
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        echo = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setTcpNoDelay(true);
+                while (true)
+                    MessageUtils.sendMessage(socket, MessageUtils.getMessage(socket, framing), framing);
+            } catch (IOException closed) {
+            }
+        });
+        echo.start();
+        client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        client.setTcpNoDelay(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() throws Exception {
+        client.close();
+        serverSocket.close();
+        echo.join();
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        MessageUtils.sendMessage(client, message, framing);
+        return MessageUtils.getMessage(client, framing);
+    }
+}
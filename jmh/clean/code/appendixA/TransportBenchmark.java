@@ -0,0 +1,89 @@
+package clean.code.appendixA;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips (connect, one message, reply, close) against nio.Server over
+ * TCP loopback and over a Unix domain socket, with no processing delay.
+ * Both clients use a blocking SocketChannel and the same framing, so the
+ * difference is the transport. Throughput gives round trips per second,
+ * SampleTime the latency distribution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class TransportBenchmark {
+    private static final int PORT = 8024;
+    private static final int TIMEOUT = 2000;
+
+    @Param({"tcp", "unix"})
+    public String transport;
+
+    private clean.code.appendixA.nio.Server server;
+    private Thread serverThread;
+    private SocketAddress address;
+    private Path directory;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        if ("unix".equals(transport)) {
+            directory = Files.createTempDirectory("appendixA");
+            address = UnixDomainSocketAddress.of(directory.resolve("server.sock"));
+        } else {
+            address = new InetSocketAddress(PORT);
+        }
+        server = new clean.code.appendixA.nio.Server(address, TIMEOUT, new DelayedEchoHandler(0));
+        serverThread = new Thread(server);
+        serverThread.start();
+        if (!"unix".equals(transport))
+            address = new InetSocketAddress("localhost", PORT);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        server.stopProcessing();
+        serverThread.join();
+        if (directory != null)
+            Files.deleteIfExists(directory);
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            MessageUtils.sendMessage(channel, "message");
+            return MessageUtils.getMessage(channel);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package clean.code.appendixA;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The servers' original "processing": reply "Processed: " + message after a
+ * delay. The delay is a timer, so waiting replies don't occupy threads.
+ */
+public class DelayedEchoHandler implements MessageHandler {
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "delayed-echo-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final long delayMillis;
+
+    public DelayedEchoHandler(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    public CompletableFuture<String> handle(String message) {
+        if (delayMillis <= 0)
+            return CompletableFuture.completedFuture(reply(message));
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        timer.schedule(() -> reply.complete(reply(message)), delayMillis, TimeUnit.MILLISECONDS);
+        return reply;
+    }
+
+    private static String reply(String message) {
+        return "Processed: " + message;
+    }
+}
@@ -0,0 +1,148 @@
+package clean.code.appendixA;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What the servers used to printf, without the printf on the serving
+ * thread. log only claims a slot in a fixed ring buffer, without locks;
+ * a daemon thread formats the events and prints them in batches. When the
+ * buffer is full the event is dropped and counted rather than making the
+ * server wait for the console.
+ */
+public class EventLog {
+    public static final String CAPACITY_PROPERTY = "clean.code.appendixA.eventLog.capacity";
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final EventLog SERVER = new EventLog(Integer.getInteger(CAPACITY_PROPERTY, 8192));
+
+    static {
+        SERVER.startDraining();
+    }
+
+    public enum Event {
+        SERVER_STARTING("Server Starting"),
+        ACCEPTING("accepting client"),
+        ACCEPTED("got client"),
+        REFUSED("Server: refused client"),
+        REJECTED("Server: rejected client"),
+        GETTING_MESSAGE("Server: getting message"),
+        GOT_MESSAGE("Server: got message"),
+        SENDING_REPLY("Server: sending reply"),
+        SENT("Server: sent"),
+        SHUT_DOWN("Server: shut down, requests dropped");
+
+        final String text;
+
+        Event(String text) {
+            this.text = text;
+        }
+    }
+
+    private static class Slot {
+        volatile long sequence;
+        Event event;
+        Object detail;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private long tail;
+
+    EventLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        mask = size - 1;
+    }
+
+    public static void log(Event event) {
+        SERVER.append(event, null);
+    }
+
+    /**
+     * The detail is formatted later on the draining thread, so it must not
+     * change after the call.
+     */
+    public static void log(Event event, Object detail) {
+        SERVER.append(event, detail);
+    }
+
+    public static long droppedEvents() {
+        return SERVER.dropped();
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    boolean append(Event event, Object detail) {
+        long position = head.get();
+        while (true) {
+            Slot slot = slots[(int) (position & mask)];
+            long sequence = slot.sequence;
+            if (sequence == position) {
+                if (head.compareAndSet(position, position + 1)) {
+                    slot.event = event;
+                    slot.detail = detail;
+                    slot.sequence = position + 1;
+                    return true;
+                }
+                position = head.get();
+            } else if (sequence < position) {
+                dropped.increment();
+                return false;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Prints every event published so far with a single print call.
+     *
+     * @return the number of events printed
+     */
+    synchronized int drainTo(PrintStream out) {
+        StringBuilder lines = new StringBuilder();
+        int drained = 0;
+        Slot slot;
+        while ((slot = slots[(int) (tail & mask)]).sequence == tail + 1) {
+            lines.append(slot.event.text);
+            if (slot.detail != null)
+                lines.append(": ").append(slot.detail);
+            lines.append('\n');
+            slot.detail = null;
+            slot.sequence = tail + slots.length;
+            tail++;
+            drained++;
+        }
+        if (drained > 0)
+            out.print(lines);
+        return drained;
+    }
+
+    private void startDraining() {
+        Thread drainer = new Thread(() -> {
+            while (true) {
+                if (drainTo(System.out) == 0)
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }, "event-log-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drainTo(System.out)));
+    }
+}
@@ -0,0 +1,11 @@
+package clean.code.appendixA;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Turns a message into its reply. The server writes the reply when the
+ * future completes, so slow work need not hold a thread while it waits.
+ */
+public interface MessageHandler {
+    CompletableFuture<String> handle(String message);
+}
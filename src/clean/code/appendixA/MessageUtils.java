@@ -1,24 +1,134 @@
 package clean.code.appendixA;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.StreamCorruptedException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 
 public class MessageUtils {
+    /**
+     * Set to OBJECT_STREAM to talk to peers that still expect every message
+     * to be a fresh ObjectOutputStream.
+     */
+    public static final String FRAMING_PROPERTY = "clean.code.appendixA.framing";
+    public static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+    static final int LENGTH_BYTES = 4;
+
+    public enum Framing {
+        /** 4-byte big-endian length followed by the UTF-8 bytes. */
+        LENGTH_PREFIXED,
+        /** Stream header plus writeUTF block data per message, as before. */
+        OBJECT_STREAM
+    }
+
+    private static final Framing FRAMING =
+            Framing.valueOf(System.getProperty(FRAMING_PROPERTY, Framing.LENGTH_PREFIXED.name()));
+
+    public static Framing framing() {
+        return FRAMING;
+    }
+
     public static void sendMessage(Socket socket, String message)
             throws IOException {
-        OutputStream stream = socket.getOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(stream);
-        oos.writeUTF(message);
-        oos.flush();
+        sendMessage(socket, message, FRAMING);
     }
 
     public static String getMessage(Socket socket) throws IOException {
-        InputStream stream = socket.getInputStream();
-        ObjectInputStream ois = new ObjectInputStream(stream);
-        return ois.readUTF();
+        return getMessage(socket, FRAMING);
+    }
+
+    public static void sendMessage(Socket socket, String message, Framing framing)
+            throws IOException {
+        write(socket.getOutputStream(), message, framing);
+    }
+
+    public static String getMessage(Socket socket, Framing framing) throws IOException {
+        return read(socket.getInputStream(), framing);
+    }
+
+    /**
+     * For blocking channels, such as a SocketChannel connected to a
+     * UnixDomainSocketAddress; the bytes on the wire are the same as for a
+     * Socket.
+     */
+    public static void sendMessage(ByteChannel channel, String message) throws IOException {
+        if (FRAMING == Framing.OBJECT_STREAM) {
+            write(Channels.newOutputStream(channel), message, FRAMING);
+            return;
+        }
+        ByteBuffer frame = ByteBuffer.wrap(encode(message));
+        while (frame.hasRemaining())
+            channel.write(frame);
+    }
+
+    public static String getMessage(ByteChannel channel) throws IOException {
+        if (FRAMING == Framing.OBJECT_STREAM)
+            return read(Channels.newInputStream(channel), FRAMING);
+        ByteBuffer length = readFully(channel, ByteBuffer.allocate(LENGTH_BYTES));
+        checkLength(length.getInt(0));
+        ByteBuffer payload = readFully(channel, ByteBuffer.allocate(length.getInt(0)));
+        return new String(payload.array(), StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer readFully(ByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                throw new EOFException();
+        return buffer;
+    }
+
+    static void write(OutputStream stream, String message, Framing framing)
+            throws IOException {
+        if (framing == Framing.OBJECT_STREAM) {
+            ObjectOutputStream oos = new ObjectOutputStream(stream);
+            oos.writeUTF(message);
+            oos.flush();
+            return;
+        }
+        stream.write(encode(message));
+        stream.flush();
+    }
+
+    static String read(InputStream stream, Framing framing) throws IOException {
+        if (framing == Framing.OBJECT_STREAM) {
+            ObjectInputStream ois = new ObjectInputStream(stream);
+            return ois.readUTF();
+        }
+        DataInputStream in = new DataInputStream(stream);
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Header and payload in one array, so the frame goes out in a single
+     * write.
+     */
+    public static byte[] encode(String message) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        checkLength(payload.length);
+        byte[] frame = new byte[LENGTH_BYTES + payload.length];
+        frame[0] = (byte) (payload.length >>> 24);
+        frame[1] = (byte) (payload.length >>> 16);
+        frame[2] = (byte) (payload.length >>> 8);
+        frame[3] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, LENGTH_BYTES, payload.length);
+        return frame;
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_MESSAGE_BYTES)
+            throw new StreamCorruptedException("invalid message length " + length);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,143 @@
+package clean.code.appendixA.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous client for a keep-alive server. Requests are spread over at
+ * most maxConnections pipelined connections, so many requests share each
+ * TCP handshake. Each connection slot has its own thread that connects and
+ * writes, so sendAndReceive never blocks the caller; the request timeout
+ * starts at once and covers connecting and writing as well as the reply.
+ * A broken connection is replaced on the next request that lands on its
+ * slot; a request that could not be sent is retried on a new connection,
+ * while one already sent fails with the connection, since the server may
+ * have acted on it. A request that times out also closes its connection,
+ * as the replies queued behind it would be stuck too.
+ */
+public class AsyncClient implements Closeable {
+    private static final int SEND_ATTEMPTS = 3;
+
+    private final String host;
+    private final int port;
+    private final long defaultTimeoutMillis;
+    final PipelinedConnection[] connections;
+    private final Object[] slotLocks;
+    private final ThreadPoolExecutor[] slotThreads;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed;
+
+    public AsyncClient(String host, int port, int maxConnections, long defaultTimeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        this.connections = new PipelinedConnection[maxConnections];
+        this.slotLocks = new Object[maxConnections];
+        this.slotThreads = new ThreadPoolExecutor[maxConnections];
+        for (int i = 0; i < maxConnections; i++) {
+            slotLocks[i] = new Object();
+            slotThreads[i] = newSlotThread("async-client-" + port + "-" + i);
+        }
+    }
+
+    private static ThreadPoolExecutor newSlotThread(String name) {
+        ThreadPoolExecutor thread = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                });
+        thread.allowCoreThreadTimeOut(true);
+        return thread;
+    }
+
+    public CompletableFuture<String> sendAndReceive(String message) {
+        return sendAndReceive(message, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<String> sendAndReceive(String message, long timeout, TimeUnit unit) {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        if (closed) {
+            reply.completeExceptionally(new IOException("client closed"));
+            return reply;
+        }
+        reply.orTimeout(timeout, unit);
+        int slot = Math.floorMod(next.getAndIncrement(), connections.length);
+        try {
+            slotThreads[slot].execute(() -> send(slot, message, reply));
+        } catch (RejectedExecutionException e) {
+            reply.completeExceptionally(new IOException("client closed"));
+        }
+        return reply;
+    }
+
+    /**
+     * Runs on the slot's thread. A request that timed out while it waited
+     * for the slot is not sent at all.
+     */
+    private void send(int slot, String message, CompletableFuture<String> reply) {
+        IOException lastFailure = null;
+        for (int attempt = 0; attempt < SEND_ATTEMPTS && !reply.isDone(); attempt++) {
+            try {
+                PipelinedConnection connection = connection(slot);
+                connection.send(message).whenComplete((r, error) -> {
+                    if (error != null)
+                        reply.completeExceptionally(error);
+                    else
+                        reply.complete(r);
+                });
+                reply.whenComplete((r, error) -> {
+                    if (error instanceof TimeoutException)
+                        connection.close();
+                });
+                return;
+            } catch (IOException e) {
+                lastFailure = e;
+            }
+        }
+        if (lastFailure != null)
+            reply.completeExceptionally(lastFailure);
+    }
+
+    /**
+     * Only the slot's thread replaces its connection, so connecting needs no
+     * lock; the lock just publishes the connection to close().
+     */
+    private PipelinedConnection connection(int slot) throws IOException {
+        PipelinedConnection connection;
+        synchronized (slotLocks[slot]) {
+            connection = connections[slot];
+        }
+        if (connection != null && connection.isOpen())
+            return connection;
+        if (closed)
+            throw new IOException("client closed");
+        connection = new PipelinedConnection(host, port, (int) Math.min(defaultTimeoutMillis, Integer.MAX_VALUE));
+        synchronized (slotLocks[slot]) {
+            if (closed) {
+                connection.close();
+                throw new IOException("client closed");
+            }
+            connections[slot] = connection;
+        }
+        return connection;
+    }
+
+    public void close() {
+        closed = true;
+        for (int i = 0; i < connections.length; i++) {
+            slotThreads[i].shutdown();
+            synchronized (slotLocks[i]) {
+                if (connections[i] != null)
+                    connections[i].close();
+            }
+        }
+    }
+}
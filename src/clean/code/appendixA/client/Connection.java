@@ -0,0 +1,63 @@
+package clean.code.appendixA.client;
+
+import clean.code.appendixA.MessageUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One persistent connection to a keep-alive server. Messages can be sent
+ * without waiting for earlier replies; the server answers in order, so
+ * receive returns the replies in the order the messages were sent.
+ */
+public class Connection implements Closeable {
+    private final Socket socket;
+    private int outstanding;
+
+    public Connection(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+    }
+
+    public void send(String message) throws IOException {
+        MessageUtils.sendMessage(socket, message);
+        outstanding++;
+    }
+
+    public String receive() throws IOException {
+        if (outstanding == 0)
+            throw new IllegalStateException("no message awaiting a reply");
+        String reply = MessageUtils.getMessage(socket);
+        outstanding--;
+        return reply;
+    }
+
+    public String sendAndReceive(String message) throws IOException {
+        send(message);
+        return receive();
+    }
+
+    public List<String> pipeline(List<String> messages) throws IOException {
+        for (String message : messages)
+            send(message);
+        List<String> replies = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++)
+            replies.add(receive());
+        return replies;
+    }
+
+    public int outstanding() {
+        return outstanding;
+    }
+
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,91 @@
+package clean.code.appendixA.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * At most maxConnections connections to one keep-alive server, opened on
+ * demand and reused. A connection that failed, or was released with replies
+ * still unread, is closed instead of going back to the pool.
+ */
+public class ConnectionPool implements Closeable {
+    private final String host;
+    private final int port;
+    private final Semaphore permits;
+    private final BlockingQueue<Connection> idle;
+    private volatile boolean closed;
+
+    public ConnectionPool(String host, int port, int maxConnections) {
+        this.host = host;
+        this.port = port;
+        this.permits = new Semaphore(maxConnections, true);
+        this.idle = new ArrayBlockingQueue<>(maxConnections);
+    }
+
+    public Connection borrow(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        if (closed)
+            throw new IOException("pool closed");
+        if (!permits.tryAcquire(timeout, unit))
+            throw new IOException("no connection available within " + unit.toMillis(timeout) + "ms");
+        Connection connection = idle.poll();
+        if (connection != null && connection.isOpen())
+            return connection;
+        try {
+            return new Connection(host, port);
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void release(Connection connection) {
+        if (closed || !connection.isOpen() || connection.outstanding() > 0 || !idle.offer(connection))
+            closeIgnoringException(connection);
+        permits.release();
+    }
+
+    /**
+     * For a connection whose last request failed: it may be half written or
+     * half read, so it is never reused.
+     */
+    public void discard(Connection connection) {
+        closeIgnoringException(connection);
+        permits.release();
+    }
+
+    public <T> T withConnection(long timeout, TimeUnit unit, Request<T> request)
+            throws IOException, InterruptedException {
+        Connection connection = borrow(timeout, unit);
+        T result;
+        try {
+            result = request.send(connection);
+        } catch (IOException | RuntimeException e) {
+            discard(connection);
+            throw e;
+        }
+        release(connection);
+        return result;
+    }
+
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null)
+            closeIgnoringException(connection);
+    }
+
+    private void closeIgnoringException(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    public interface Request<T> {
+        T send(Connection connection) throws IOException;
+    }
+}
@@ -0,0 +1,105 @@
+package clean.code.appendixA.client;
+
+import clean.code.appendixA.MessageUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A keep-alive connection shared by many callers. Requests are written as
+ * they arrive and a reader thread completes their futures in order as the
+ * replies come back. When the connection fails every waiting request fails
+ * with it.
+ */
+class PipelinedConnection {
+    private final Socket socket;
+    private final Object writeLock = new Object();
+    private final Queue<CompletableFuture<String>> awaitingReply = new ConcurrentLinkedQueue<>();
+    private volatile IOException failure;
+
+    PipelinedConnection(String host, int port, int connectTimeoutMillis) throws IOException {
+        socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Thread reader = new Thread(this::readReplies, "pipelined-reader-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Queues the reply before writing, under one lock, so queue order is wire
+     * order. The reader never takes the lock, so a write blocked on a full
+     * socket cannot stop replies from being read.
+     *
+     * @return the reply, which fails with the connection if it breaks once
+     * the message is sent
+     * @throws IOException if the message was not sent: the connection had
+     * already failed, or the write failed and took the connection with it.
+     * A message cut off part way is never acted on, since the server needs
+     * the whole frame, so the caller may send it again elsewhere.
+     */
+    CompletableFuture<String> send(String message) throws IOException {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        synchronized (writeLock) {
+            if (failure != null)
+                throw failure;
+            awaitingReply.add(reply);
+            try {
+                MessageUtils.sendMessage(socket, message);
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+        }
+        // fail() may have drained the queue just before our add
+        if (failure != null)
+            reply.completeExceptionally(failure);
+        return reply;
+    }
+
+    boolean isOpen() {
+        return failure == null;
+    }
+
+    void close() {
+        fail(new IOException("connection closed"));
+    }
+
+    private void readReplies() {
+        try {
+            while (true) {
+                String reply = MessageUtils.getMessage(socket);
+                CompletableFuture<String> waiting = awaitingReply.poll();
+                if (waiting == null)
+                    throw new IOException("reply without a request: " + reply);
+                waiting.complete(reply);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (failure != null)
+                return;
+            failure = e;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+        CompletableFuture<String> reply;
+        while ((reply = awaitingReply.poll()) != null)
+            reply.completeExceptionally(e);
+    }
+}
@@ -0,0 +1,29 @@
+package clean.code.appendixA.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.net.SocketAddress;
+
+@Name("clean.code.appendixA.Accept")
+@Label("Accept")
+@Description("From accept returning to the connection reaching the thread or selector that serves it")
+public class AcceptEvent extends ServerEvent {
+    @Label("Remote Address")
+    String remoteAddress;
+
+    public static AcceptEvent begin(String server, long clientId) {
+        AcceptEvent event = new AcceptEvent();
+        event.start(server, clientId);
+        return event;
+    }
+
+    public void finish(SocketAddress remote) {
+        end();
+        if (shouldCommit()) {
+            remoteAddress = String.valueOf(remote);
+            commit();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package clean.code.appendixA.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("clean.code.appendixA.Decode")
+@Label("Message Decode")
+@Description("Reading one message: blocking servers include the wait for the client's bytes, "
+        + "selector servers start at the first read that returns part of the frame")
+public class DecodeEvent extends ServerEvent {
+    public static DecodeEvent begin(String server, long clientId) {
+        DecodeEvent event = new DecodeEvent();
+        event.start(server, clientId);
+        return event;
+    }
+}
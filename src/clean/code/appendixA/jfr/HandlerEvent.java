@@ -0,0 +1,24 @@
+package clean.code.appendixA.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("clean.code.appendixA.Handler")
+@Label("Handler Execution")
+@Description("From a message being handed to the handler to its reply being ready")
+public class HandlerEvent extends ServerEvent {
+    @Label("Failed")
+    boolean failed;
+
+    public static HandlerEvent begin(String server, long clientId) {
+        HandlerEvent event = new HandlerEvent();
+        event.start(server, clientId);
+        return event;
+    }
+
+    public void finish(Throwable error) {
+        failed = error != null;
+        finish();
+    }
+}
@@ -0,0 +1,46 @@
+package clean.code.appendixA.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flight recorder events for one step of serving a connection. All events
+ * for a connection carry the same client id, so a recording shows where
+ * its time went. Record with
+ * -XX:StartFlightRecording=settings=profile and filter on "Appendix A".
+ * While no recording is running an event costs next to nothing.
+ */
+@Category({"Clean Code", "Appendix A"})
+@StackTrace(false)
+public abstract class ServerEvent extends Event {
+    private static final AtomicLong clientIds = new AtomicLong();
+
+    @Label("Server")
+    @Description("The server variant, e.g. threaded or nio")
+    String server;
+
+    @Label("Client Id")
+    @Description("Number of the connection, unique within the JVM")
+    long clientId;
+
+    public static long nextClientId() {
+        return clientIds.incrementAndGet();
+    }
+
+    void start(String server, long clientId) {
+        this.server = server;
+        this.clientId = clientId;
+        begin();
+    }
+
+    public void finish() {
+        end();
+        if (shouldCommit())
+            commit();
+    }
+}
@@ -0,0 +1,16 @@
+package clean.code.appendixA.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("clean.code.appendixA.Write")
+@Label("Reply Write")
+@Description("Writing one reply, until its last byte is handed to the socket")
+public class WriteEvent extends ServerEvent {
+    public static WriteEvent begin(String server, long clientId) {
+        WriteEvent event = new WriteEvent();
+        event.start(server, clientId);
+        return event;
+    }
+}
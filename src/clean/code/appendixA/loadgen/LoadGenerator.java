@@ -0,0 +1,256 @@
+package clean.code.appendixA.loadgen;
+
+import clean.code.appendixA.MessageUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a server with connect-send-receive-close requests, the same
+ * exchange as ClientTest, and prints throughput and latency percentiles.
+ *
+ * closed mode: concurrency clients, each sending its next request as soon
+ * as the last reply arrives. A slow server slows the clients down, so this
+ * measures capacity, not the latency users would see.
+ *
+ * open mode: requests start at a fixed rate whether or not earlier ones
+ * have finished. Latency is measured from when each request was due to
+ * start, so time spent queued behind a stalled server is counted
+ * (correcting coordinated omission); service time, measured from when the
+ * request actually started, is shown alongside. Requests still unanswered
+ * when the run ends are recorded at their latency so far and reported as
+ * timed out, so a stalled server cannot drop out of the percentiles.
+ *
+ * Every request connects and reads with a timeout of --timeout seconds; a
+ * request that hits it counts as timed out rather than as an error.
+ *
+ * Options (all optional):
+ * --server=nio    start clean.code.appendixA.{server}.Server in-process
+ * --host=localhost --port=8009   target when --server is not given
+ * --mode=closed --concurrency=10 --rate=100 --duration=10 --warmup=2
+ * --timeout=10
+ */
+public class LoadGenerator {
+    private static final int SERVER_TIMEOUT = 2000;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private enum Outcome {
+        OK, ERROR, TIMED_OUT
+    }
+
+    private final String host;
+    private final int port;
+    private final boolean openLoop;
+    private final int concurrency;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int timeoutMillis;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public LoadGenerator(Map<String, String> options) {
+        host = options.getOrDefault("host", "localhost");
+        port = Integer.parseInt(options.getOrDefault("port", "8009"));
+        openLoop = "open".equals(options.getOrDefault("mode", "closed"));
+        concurrency = Integer.parseInt(options.getOrDefault("concurrency", "10"));
+        rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "10")));
+        warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "2")));
+        timeoutMillis = (int) TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("timeout", "10")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "true");
+        }
+
+        PrintStream out = System.out;
+        InProcessServer server = null;
+        if (options.containsKey("server")) {
+            // keep the server's EventLog lines out of the report
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            server = InProcessServer.start(options.get("server"),
+                    Integer.parseInt(options.getOrDefault("port", "8009")), SERVER_TIMEOUT);
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(options);
+            long elapsed = generator.run();
+            generator.report(out, options.getOrDefault("server", generator.host + ":" + generator.port),
+                    elapsed);
+        } finally {
+            if (server != null)
+                server.stop();
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * @return nanoseconds spent measuring, after the warmup
+     */
+    public long run() throws InterruptedException {
+        return openLoop ? runOpenLoop() : runClosedLoop();
+    }
+
+    private long runClosedLoop() throws InterruptedException {
+        final long start = System.nanoTime();
+        final long measureFrom = start + warmupNanos;
+        final long end = measureFrom + durationNanos;
+        Thread[] clients = new Thread[concurrency];
+        for (int i = 0; i < clients.length; i++) {
+            final int client = i;
+            clients[i] = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    long begin = System.nanoTime();
+                    Outcome outcome = request(client);
+                    if (begin >= measureFrom)
+                        recordResult(begin, begin, outcome);
+                }
+            }, "closed-loop-client-" + i);
+            clients[i].start();
+        }
+        for (Thread client : clients)
+            client.join();
+        return durationNanos;
+    }
+
+    private long runOpenLoop() throws InterruptedException {
+        final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        final long start = System.nanoTime();
+        final long measureFrom = start + warmupNanos;
+        final long end = measureFrom + durationNanos;
+        // unbounded, so a stalled server makes requests pile up rather than
+        // quietly lowering the offered rate
+        ExecutorService senders = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "open-loop-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // measured requests not yet recorded, by sequence; whoever removes
+        // an entry records it, the sender or the end of the run
+        final Map<Long, Long> unfinished = new ConcurrentHashMap<>();
+        long sequence = 0;
+        for (long due = start; due < end; due = start + ++sequence * interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            final long intended = due;
+            final long id = sequence;
+            if (intended >= measureFrom)
+                unfinished.put(id, intended);
+            senders.execute(() -> {
+                long begin = System.nanoTime();
+                Outcome outcome = request((int) id);
+                if (unfinished.remove(id) != null)
+                    recordResult(intended, begin, outcome);
+            });
+        }
+        senders.shutdown();
+        // connecting and reading each wait at most timeoutMillis
+        if (!senders.awaitTermination(2L * timeoutMillis + 1000, TimeUnit.MILLISECONDS))
+            senders.shutdownNow();
+        long now = System.nanoTime();
+        for (Long id : unfinished.keySet()) {
+            Long intended = unfinished.remove(id);
+            if (intended != null) {
+                latency.record(now - intended);
+                timeouts.incrementAndGet();
+            }
+        }
+        return durationNanos;
+    }
+
+    private void recordResult(long intended, long begin, Outcome outcome) {
+        if (outcome == Outcome.ERROR) {
+            errors.incrementAndGet();
+            return;
+        }
+        long now = System.nanoTime();
+        latency.record(now - intended);
+        if (outcome == Outcome.TIMED_OUT)
+            timeouts.incrementAndGet();
+        else
+            serviceTime.record(now - begin);
+    }
+
+    private Outcome request(int client) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            MessageUtils.sendMessage(socket, Integer.toString(client));
+            MessageUtils.getMessage(socket);
+            return Outcome.OK;
+        } catch (SocketTimeoutException e) {
+            return Outcome.TIMED_OUT;
+        } catch (IOException e) {
+            return Outcome.ERROR;
+        }
+    }
+
+    public void report(PrintStream out, String target, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        out.printf("%s, %s loop, %s\n", target, openLoop ? "open" : "closed",
+                openLoop ? String.format("%.0f requests/s offered", rate) : concurrency + " clients");
+        out.printf("requests %d, errors %d, timed out %d, throughput %.1f/s\n", latency.count(), errors.get(),
+                timeouts.get(), (latency.count() - timeouts.get()) / seconds);
+        out.printf("%-10s", "ms");
+        for (double p : PERCENTILES)
+            out.printf("%10s", "p" + (p == Math.rint(p) ? String.valueOf((long) p) : String.valueOf(p)));
+        out.printf("%10s%10s\n", "max", "mean");
+        // timed-out requests count in latency but have no service time
+        printRow(out, "latency", latency);
+        if (openLoop)
+            printRow(out, "service", serviceTime);
+    }
+
+    private static void printRow(PrintStream out, String name, LatencyHistogram histogram) {
+        out.printf("%-10s", name);
+        for (double p : PERCENTILES)
+            out.printf("%10.3f", histogram.percentile(p) / 1e6);
+        out.printf("%10.3f%10.3f\n", histogram.max() / 1e6, histogram.mean() / 1e6);
+    }
+
+    /**
+     * Any appendixA Server variant, found by package name, so the load
+     * generator does not depend on each of them.
+     */
+    static class InProcessServer {
+        private final Object server;
+        private final Thread thread;
+
+        private InProcessServer(Object server) {
+            this.server = server;
+            this.thread = new Thread((Runnable) server, "server-under-test");
+        }
+
+        static InProcessServer start(String variant, int port, int timeout) throws Exception {
+            Class<?> type = Class.forName("clean.code.appendixA." + variant + ".Server");
+            InProcessServer inProcess = new InProcessServer(
+                    type.getConstructor(int.class, int.class).newInstance(port, timeout));
+            inProcess.thread.start();
+            return inProcess;
+        }
+
+        void stop() throws Exception {
+            server.getClass().getMethod("stopProcessing").invoke(server);
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package clean.code.appendixA.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * MessageHandler for handlers that can work on bytes: message is a
+ * read-only view into the connection's receive buffer rather than a decoded
+ * String. The view stays valid until the returned future completes; the
+ * reply's remaining bytes are sent as the reply message.
+ */
+public interface BufferMessageHandler {
+    CompletableFuture<ByteBuffer> handle(ByteBuffer message);
+}
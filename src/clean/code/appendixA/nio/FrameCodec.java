@@ -0,0 +1,51 @@
+package clean.code.appendixA.nio;
+
+import clean.code.appendixA.MessageUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The length-prefixed framing of MessageUtils, without copying: decode
+ * returns a view of the payload inside the receive buffer, and frame puts a
+ * header in front of a reply payload for a single gather write.
+ */
+public final class FrameCodec {
+    public static final int HEADER_BYTES = 4;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @param buffer receive buffer in fill mode, data in [0, position)
+     * @return read-only view of the first frame's payload, or null until the
+     * whole frame has arrived
+     */
+    public static ByteBuffer decode(ByteBuffer buffer) throws IOException {
+        if (buffer.position() < HEADER_BYTES)
+            return null;
+        int length = buffer.getInt(0);
+        MessageUtils.checkLength(length);
+        if (HEADER_BYTES + length > buffer.capacity())
+            throw new IOException("frame of " + length + " bytes does not fit a "
+                    + buffer.capacity() + " byte buffer");
+        if (buffer.position() < HEADER_BYTES + length)
+            return null;
+        return buffer.slice(HEADER_BYTES, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Fills header with payload's length and returns frame holding
+     * {header, payload}, ready for GatheringByteChannel.write.
+     */
+    public static ByteBuffer[] frame(ByteBuffer header, ByteBuffer payload, ByteBuffer[] frame)
+            throws IOException {
+        MessageUtils.checkLength(payload.remaining());
+        header.clear();
+        header.putInt(payload.remaining());
+        header.flip();
+        frame[0] = header;
+        frame[1] = payload;
+        return frame;
+    }
+}
@@ -0,0 +1,37 @@
+package clean.code.appendixA.nio;
+
+import clean.code.appendixA.MessageUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+class LengthPrefixedFrames extends MessageFrames {
+    private final ByteBuffer length = ByteBuffer.allocate(4);
+    private ByteBuffer payload;
+
+    public ByteBuffer encode(String message) throws IOException {
+        return ByteBuffer.wrap(MessageUtils.encode(message));
+    }
+
+    public String decode(ByteBuffer buffer) throws IOException {
+        if (payload == null) {
+            while (length.hasRemaining() && buffer.hasRemaining())
+                length.put(buffer.get());
+            if (length.hasRemaining())
+                return null;
+            int size = length.getInt(0);
+            MessageUtils.checkLength(size);
+            payload = ByteBuffer.allocate(size);
+        }
+        int count = Math.min(payload.remaining(), buffer.remaining());
+        payload.put(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+        buffer.position(buffer.position() + count);
+        if (payload.hasRemaining())
+            return null;
+        String message = new String(payload.array(), 0, payload.position(), StandardCharsets.UTF_8);
+        payload = null;
+        length.clear();
+        return message;
+    }
+}
@@ -0,0 +1,26 @@
+package clean.code.appendixA.nio;
+
+import clean.code.appendixA.MessageUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Non-blocking counterpart of MessageUtils for one connection: decode is fed
+ * whatever bytes have arrived and returns a message once one is complete.
+ */
+public abstract class MessageFrames {
+    public static MessageFrames create(MessageUtils.Framing framing) {
+        if (framing == MessageUtils.Framing.OBJECT_STREAM)
+            return new ObjectStreamFrames();
+        return new LengthPrefixedFrames();
+    }
+
+    public abstract ByteBuffer encode(String message) throws IOException;
+
+    /**
+     * Consumes everything in the buffer and returns the message once it is
+     * complete, or null while more bytes are needed.
+     */
+    public abstract String decode(ByteBuffer buffer) throws IOException;
+}
@@ -0,0 +1,73 @@
+package clean.code.appendixA.nio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message is an ObjectOutputStream stream header followed by block data
+ * holding a single writeUTF string.
+ */
+class ObjectStreamFrames extends MessageFrames {
+    private static final byte[] STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+    private static final byte TC_BLOCKDATA = 0x77;
+    private static final byte TC_BLOCKDATALONG = 0x7A;
+
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    public ByteBuffer encode(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeUTF(message);
+        oos.flush();
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    public String decode(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            received.write(buffer.get());
+        return parse(received.toByteArray());
+    }
+
+    private static String parse(byte[] bytes) throws IOException {
+        int available = Math.min(bytes.length, STREAM_HEADER.length);
+        for (int i = 0; i < available; i++)
+            if (bytes[i] != STREAM_HEADER[i])
+                throw new StreamCorruptedException("invalid stream header");
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        int position = STREAM_HEADER.length;
+        while (position < bytes.length) {
+            int length;
+            int headerLength;
+            if (bytes[position] == TC_BLOCKDATA) {
+                headerLength = 2;
+                if (position + headerLength > bytes.length)
+                    break;
+                length = bytes[position + 1] & 0xFF;
+            } else if (bytes[position] == TC_BLOCKDATALONG) {
+                headerLength = 5;
+                if (position + headerLength > bytes.length)
+                    break;
+                length = ByteBuffer.wrap(bytes, position + 1, 4).getInt();
+            } else {
+                throw new StreamCorruptedException("unexpected type code " + bytes[position]);
+            }
+            int end = Math.min(bytes.length, position + headerLength + length);
+            payload.write(bytes, position + headerLength, end - position - headerLength);
+            position = end;
+        }
+
+        byte[] data = payload.toByteArray();
+        if (data.length < 2)
+            return null;
+        int utfLength = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+        if (data.length < 2 + utfLength)
+            return null;
+        return new DataInputStream(new ByteArrayInputStream(data)).readUTF();
+    }
+}
@@ -0,0 +1,341 @@
+package clean.code.appendixA.nio;
+
+import clean.code.appendixA.DelayedEchoHandler;
+import clean.code.appendixA.EventLog;
+import clean.code.appendixA.EventLog.Event;
+import clean.code.appendixA.MessageHandler;
+import clean.code.appendixA.MessageUtils;
+import clean.code.appendixA.jfr.AcceptEvent;
+import clean.code.appendixA.jfr.DecodeEvent;
+import clean.code.appendixA.jfr.HandlerEvent;
+import clean.code.appendixA.jfr.ServerEvent;
+import clean.code.appendixA.jfr.WriteEvent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves every connection from one selector thread. Messages go to a
+ * MessageHandler and the reply is written whenever its future completes, so
+ * thousands of clients can be waiting for a reply at once. The default
+ * handler's one second of "processing" is a timer, not a sleeping thread.
+ * Messages use the same framing as MessageUtils.
+ *
+ * A BufferMessageHandler gets each message as a view into a pooled direct
+ * receive buffer and its reply is sent with one gather write of header and
+ * payload, so no per-message String or frame array is created.
+ *
+ * Given a UnixDomainSocketAddress the server listens on that path instead
+ * of a TCP port, for clients on the same host; framing is unchanged. The
+ * socket file is removed when the server stops.
+ */
+public class Server implements Runnable {
+    private static final String NAME = "nio";
+    private static final int BACKLOG = 16384;
+    private static final int RECEIVE_BUFFER_BYTES = 16 * 1024;
+    private static final int POOLED_BUFFERS = 1024;
+
+    ServerSocketChannel serverChannel;
+    final SocketAddress address;
+    Selector selector;
+    volatile boolean keepProcessing = true;
+    private final int millisecondsTimeout;
+    private final MessageHandler handler;
+    private final BufferMessageHandler bufferHandler;
+    private final BufferPool bufferPool;
+    private final Queue<Connection> readyToReply = new ConcurrentLinkedQueue<>();
+
+    public Server(int port, int millisecondsTimeout) throws IOException {
+        this(port, millisecondsTimeout, new DelayedEchoHandler(1000));
+    }
+
+    public Server(int port, int millisecondsTimeout, MessageHandler handler) throws IOException {
+        this(new InetSocketAddress(port), millisecondsTimeout, handler, null);
+    }
+
+    public Server(int port, int millisecondsTimeout, BufferMessageHandler handler) throws IOException {
+        this(new InetSocketAddress(port), millisecondsTimeout, null, handler);
+    }
+
+    public Server(SocketAddress address, int millisecondsTimeout, MessageHandler handler) throws IOException {
+        this(address, millisecondsTimeout, handler, null);
+    }
+
+    public Server(SocketAddress address, int millisecondsTimeout, BufferMessageHandler handler)
+            throws IOException {
+        this(address, millisecondsTimeout, null, handler);
+    }
+
+    private Server(SocketAddress address, int millisecondsTimeout, MessageHandler handler,
+                   BufferMessageHandler bufferHandler) throws IOException {
+        if (bufferHandler != null && MessageUtils.framing() != MessageUtils.Framing.LENGTH_PREFIXED)
+            throw new IllegalStateException("buffer handlers need LENGTH_PREFIXED framing");
+        this.millisecondsTimeout = millisecondsTimeout;
+        this.handler = handler;
+        this.bufferHandler = bufferHandler;
+        this.bufferPool = bufferHandler == null ? null : new BufferPool(RECEIVE_BUFFER_BYTES, POOLED_BUFFERS);
+        this.address = address;
+        selector = Selector.open();
+        if (address instanceof UnixDomainSocketAddress) {
+            serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        }
+        serverChannel.bind(address, BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void run() {
+        EventLog.log(Event.SERVER_STARTING);
+
+        while (keepProcessing) {
+            try {
+                selector.select(millisecondsTimeout);
+                registerReplies();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    dispatch(key);
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        closeAll();
+    }
+
+    public void stopProcessing() {
+        keepProcessing = false;
+        selector.wakeup();
+    }
+
+    private void dispatch(SelectionKey key) {
+        try {
+            if (!key.isValid())
+                return;
+            if (key.isAcceptable())
+                accept();
+            else if (key.isReadable())
+                read(key);
+            else if (key.isWritable())
+                write(key);
+        } catch (IOException e) {
+            closeIgnoringException(key);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                EventLog.log(Event.ACCEPTED);
+                long clientId = ServerEvent.nextClientId();
+                AcceptEvent accepted = AcceptEvent.begin(NAME, clientId);
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(bufferHandler == null
+                        ? new StringConnection(key, clientId) : new BufferConnection(key, clientId));
+                accepted.finish(channel.getRemoteAddress());
+            }
+        } catch (IOException e) {
+            // e.g. out of file descriptors: the connection stays queued
+            // and is accepted on a later select
+            e.printStackTrace();
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (!connection.read((SocketChannel) key.channel()))
+            closeIgnoringException(key);
+    }
+
+    /**
+     * Runs on whichever thread completed the handler's future; the selector
+     * thread picks the reply up in registerReplies. A failed handler passes
+     * a null reply, which closes the connection.
+     */
+    private void replyReady(Connection connection, ByteBuffer[] reply) {
+        connection.reply = reply;
+        readyToReply.add(connection);
+        selector.wakeup();
+    }
+
+    private void registerReplies() {
+        Connection connection;
+        while ((connection = readyToReply.poll()) != null) {
+            if (connection.reply == null)
+                closeIgnoringException(connection.key);
+            else if (connection.key.isValid())
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.writing == null)
+            connection.writing = WriteEvent.begin(NAME, connection.clientId);
+        ((SocketChannel) key.channel()).write(connection.reply);
+        if (!connection.reply[connection.reply.length - 1].hasRemaining()) {
+            connection.writing.finish();
+            EventLog.log(Event.SENT);
+            closeIgnoringException(key);
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys())
+                closeIgnoringException(key);
+            selector.close();
+        } catch (IOException ignore) {
+        }
+        try {
+            serverChannel.close();
+            if (address instanceof UnixDomainSocketAddress)
+                Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void closeIgnoringException(SelectionKey key) {
+        key.cancel();
+        if (key.attachment() instanceof Connection)
+            ((Connection) key.attachment()).release();
+        try {
+            key.channel().close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    abstract static class Connection {
+        final SelectionKey key;
+        final long clientId;
+        ByteBuffer[] reply;
+        DecodeEvent decoding;
+        WriteEvent writing;
+
+        Connection(SelectionKey key, long clientId) {
+            this.key = key;
+            this.clientId = clientId;
+        }
+
+        /**
+         * Reads what has arrived and hands a complete message to the
+         * handler; false once the client has closed the connection.
+         */
+        abstract boolean read(SocketChannel channel) throws IOException;
+
+        void release() {
+        }
+    }
+
+    private class StringConnection extends Connection {
+        private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        private final MessageFrames frames = MessageFrames.create(MessageUtils.framing());
+
+        StringConnection(SelectionKey key, long clientId) {
+            super(key, clientId);
+        }
+
+        boolean read(SocketChannel channel) throws IOException {
+            if (channel.read(buffer) < 0)
+                return false;
+            if (decoding == null)
+                decoding = DecodeEvent.begin(NAME, clientId);
+            buffer.flip();
+            String message = frames.decode(buffer);
+            buffer.clear();
+            if (message == null)
+                return true;
+            decoding.finish();
+            decoding = null;
+
+            EventLog.log(Event.GOT_MESSAGE, message);
+            key.interestOps(0);
+            HandlerEvent handling = HandlerEvent.begin(NAME, clientId);
+            handler.handle(message).whenComplete((reply, error) -> {
+                handling.finish(error);
+                ByteBuffer[] frame = null;
+                try {
+                    if (error != null)
+                        error.printStackTrace();
+                    else {
+                        EventLog.log(Event.SENDING_REPLY, message);
+                        frame = new ByteBuffer[]{frames.encode(reply)};
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                replyReady(this, frame);
+            });
+            return true;
+        }
+    }
+
+    private class BufferConnection extends Connection {
+        private final ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_BYTES);
+        private final ByteBuffer[] frame = new ByteBuffer[2];
+        private ByteBuffer buffer = bufferPool.acquire();
+
+        BufferConnection(SelectionKey key, long clientId) {
+            super(key, clientId);
+        }
+
+        boolean read(SocketChannel channel) throws IOException {
+            if (channel.read(buffer) < 0)
+                return false;
+            if (decoding == null)
+                decoding = DecodeEvent.begin(NAME, clientId);
+            ByteBuffer message = FrameCodec.decode(buffer);
+            if (message == null)
+                return true;
+            decoding.finish();
+            decoding = null;
+
+            key.interestOps(0);
+            HandlerEvent handling = HandlerEvent.begin(NAME, clientId);
+            bufferHandler.handle(message).whenComplete((reply, error) -> {
+                handling.finish(error);
+                ByteBuffer[] framed = null;
+                try {
+                    if (error != null)
+                        error.printStackTrace();
+                    else
+                        framed = FrameCodec.frame(header, reply, frame);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                replyReady(this, framed);
+            });
+            return true;
+        }
+
+        void release() {
+            if (buffer != null) {
+                bufferPool.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+}
@@ -1,30 +1,53 @@
 package clean.code.appendixA.nonthreaded;
 
+import clean.code.appendixA.EventLog;
+import clean.code.appendixA.EventLog.Event;
 import clean.code.appendixA.MessageUtils;
+import clean.code.appendixA.jfr.AcceptEvent;
+import clean.code.appendixA.jfr.DecodeEvent;
+import clean.code.appendixA.jfr.HandlerEvent;
+import clean.code.appendixA.jfr.ServerEvent;
+import clean.code.appendixA.jfr.WriteEvent;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 
 public class Server implements Runnable {
+    private static final String NAME = "nonthreaded";
+
     ServerSocket serverSocket;
     volatile boolean keepProcessing = true;
+    final boolean keepAlive;
+    final long processingMillis;
 
     public Server(int port, int millisecondsTimeout) throws IOException {
+        this(port, millisecondsTimeout, false, 1000);
+    }
+
+    /**
+     * With keepAlive a connection carries any number of messages, possibly
+     * pipelined; replies go back in order and the next client is accepted
+     * once this one closes its connection.
+     */
+    public Server(int port, int millisecondsTimeout, boolean keepAlive, long processingMillis)
+            throws IOException {
         serverSocket = new ServerSocket(port);
         serverSocket.setSoTimeout(millisecondsTimeout);
-
+        this.keepAlive = keepAlive;
+        this.processingMillis = processingMillis;
     }
 
     public void run() {
-        System.out.printf("Server Starting\n");
+        EventLog.log(Event.SERVER_STARTING);
 
         while (keepProcessing) {
             try {
-                System.out.printf("accepting client\n");
+                EventLog.log(Event.ACCEPTING);
                 Socket socket = serverSocket.accept();
-                System.out.printf("got client\n");
+                EventLog.log(Event.ACCEPTED);
                 process(socket);
             } catch (Exception e) {
                 handle(e);
@@ -47,17 +70,31 @@ public class Server implements Runnable {
         if (socket == null)
             return;
 
+        long clientId = ServerEvent.nextClientId();
+        AcceptEvent.begin(NAME, clientId).finish(socket.getRemoteSocketAddress());
         try {
-            System.out.printf("Server: getting message\n");
-            String message = MessageUtils.getMessage(socket);
-            System.out.printf("Server: got message: %s\n", message);
-            Thread.sleep(1000);
-            System.out.printf("Server: sending reply: %s\n", message);
-            MessageUtils.sendMessage(socket, "Processed: " + message);
-            System.out.printf("Server: sent\n");
-            closeIgnoringException(socket);
+            do {
+                EventLog.log(Event.GETTING_MESSAGE);
+                DecodeEvent decoded = DecodeEvent.begin(NAME, clientId);
+                String message = MessageUtils.getMessage(socket);
+                decoded.finish();
+                EventLog.log(Event.GOT_MESSAGE, message);
+                HandlerEvent handling = HandlerEvent.begin(NAME, clientId);
+                Thread.sleep(processingMillis);
+                handling.finish(null);
+                EventLog.log(Event.SENDING_REPLY, message);
+                WriteEvent writing = WriteEvent.begin(NAME, clientId);
+                MessageUtils.sendMessage(socket, "Processed: " + message);
+                writing.finish();
+                EventLog.log(Event.SENT);
+            } while (keepAlive);
+        } catch (EOFException e) {
+            if (!keepAlive)
+                e.printStackTrace();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            closeIgnoringException(socket);
         }
 
     }
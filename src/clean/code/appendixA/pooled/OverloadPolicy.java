@@ -0,0 +1,14 @@
+package clean.code.appendixA.pooled;
+
+/**
+ * What the server does with a new connection when every worker is busy and
+ * the queue is full.
+ */
+public enum OverloadPolicy {
+    /** Close the new connection without reading it. */
+    REJECT,
+    /** Handle the new connection on the accepting thread, which slows accepting down. */
+    CALLER_RUNS,
+    /** Close the connection that has waited longest and queue the new one. */
+    SHED_OLDEST
+}
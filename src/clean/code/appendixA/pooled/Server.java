@@ -0,0 +1,209 @@
+package clean.code.appendixA.pooled;
+
+import clean.code.appendixA.EventLog;
+import clean.code.appendixA.EventLog.Event;
+import clean.code.appendixA.MessageUtils;
+import clean.code.appendixA.jfr.AcceptEvent;
+import clean.code.appendixA.jfr.DecodeEvent;
+import clean.code.appendixA.jfr.HandlerEvent;
+import clean.code.appendixA.jfr.ServerEvent;
+import clean.code.appendixA.jfr.WriteEvent;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Like threaded.Server, but client handlers run on a fixed number of worker
+ * threads behind a bounded queue, so a burst of connections cannot create an
+ * unbounded number of threads.
+ */
+public class Server implements Runnable {
+    private static final String NAME = "pooled";
+    ServerSocket serverSocket;
+    volatile boolean keepProcessing = true;
+    private final ThreadPoolExecutor executor;
+    private final ServerMetrics metrics;
+    private final ObjectName metricsName;
+
+    public Server(int port, int millisecondsTimeout) throws IOException {
+        this(port, millisecondsTimeout, 10, 100, OverloadPolicy.REJECT);
+    }
+
+    public Server(int port, int millisecondsTimeout, int workers, int queueCapacity,
+                  OverloadPolicy policy) throws IOException {
+        serverSocket = new ServerSocket(port);
+        serverSocket.setSoTimeout(millisecondsTimeout);
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), rejectionHandler(policy));
+        metrics = new ServerMetrics(executor);
+        metricsName = registerMetrics(port);
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void run() {
+        EventLog.log(Event.SERVER_STARTING);
+
+        while (keepProcessing) {
+            try {
+                EventLog.log(Event.ACCEPTING);
+                Socket socket = serverSocket.accept();
+                EventLog.log(Event.ACCEPTED);
+                process(socket);
+            } catch (Exception e) {
+                handle(e);
+            }
+        }
+
+    }
+
+    private void handle(Exception e) {
+        if (!(e instanceof SocketException)) {
+            e.printStackTrace();
+        }
+    }
+
+    public void stopProcessing() {
+        keepProcessing = false;
+        closeIgnoringException(serverSocket);
+        executor.shutdown();
+        unregisterMetrics();
+    }
+
+    void process(Socket socket) {
+        if (socket == null)
+            return;
+
+        long clientId = ServerEvent.nextClientId();
+        AcceptEvent accepted = AcceptEvent.begin(NAME, clientId);
+        ClientHandler handler = new ClientHandler(socket, clientId);
+        // finished before the hand-off: CALLER_RUNS would run the whole request inside execute
+        accepted.finish(socket.getRemoteSocketAddress());
+        executor.execute(handler);
+    }
+
+    private RejectedExecutionHandler rejectionHandler(OverloadPolicy policy) {
+        switch (policy) {
+            case CALLER_RUNS:
+                return (handler, executor) -> {
+                    if (!executor.isShutdown())
+                        handler.run();
+                    else
+                        drop(handler);
+                };
+            case SHED_OLDEST:
+                return (handler, executor) -> {
+                    if (executor.isShutdown()) {
+                        drop(handler);
+                        return;
+                    }
+                    Runnable oldest = executor.getQueue().poll();
+                    if (oldest != null) {
+                        ((ClientHandler) oldest).close();
+                        metrics.shed();
+                    }
+                    executor.execute(handler);
+                };
+            default:
+                return (handler, executor) -> drop(handler);
+        }
+    }
+
+    private void drop(Runnable handler) {
+        // counted before closing, so a client that sees the close also sees the count
+        metrics.rejected();
+        ((ClientHandler) handler).close();
+        EventLog.log(Event.REJECTED);
+    }
+
+    private ObjectName registerMetrics(int port) {
+        try {
+            ObjectName name = new ObjectName("clean.code.appendixA.pooled:type=Server,port=" + port);
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(name))
+                mBeanServer.unregisterMBean(name);
+            mBeanServer.registerMBean(metrics, name);
+            return name;
+        } catch (JMException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void unregisterMetrics() {
+        try {
+            if (metricsName != null)
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException ignore) {
+        }
+    }
+
+    private class ClientHandler implements Runnable {
+        private final Socket socket;
+        private final long clientId;
+        private final long queuedAt = System.nanoTime();
+
+        ClientHandler(Socket socket, long clientId) {
+            this.socket = socket;
+            this.clientId = clientId;
+        }
+
+        public void run() {
+            metrics.started(System.nanoTime() - queuedAt);
+            try {
+                EventLog.log(Event.GETTING_MESSAGE);
+                DecodeEvent decoded = DecodeEvent.begin(NAME, clientId);
+                String message = MessageUtils.getMessage(socket);
+                decoded.finish();
+                EventLog.log(Event.GOT_MESSAGE, message);
+                HandlerEvent handling = HandlerEvent.begin(NAME, clientId);
+                Thread.sleep(1000);
+                handling.finish(null);
+                EventLog.log(Event.SENDING_REPLY, message);
+                WriteEvent writing = WriteEvent.begin(NAME, clientId);
+                MessageUtils.sendMessage(socket, "Processed: " + message);
+                writing.finish();
+                EventLog.log(Event.SENT);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                close();
+                metrics.completed();
+            }
+        }
+
+        void close() {
+            closeIgnoringException(socket);
+        }
+    }
+
+    private void closeIgnoringException(Socket socket) {
+        if (socket != null)
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+
+    }
+
+    private void closeIgnoringException(ServerSocket serverSocket) {
+        if (serverSocket != null)
+            try {
+                serverSocket.close();
+            } catch (IOException ignore) {
+            }
+
+    }
+}
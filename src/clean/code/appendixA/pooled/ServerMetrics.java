@@ -0,0 +1,70 @@
+package clean.code.appendixA.pooled;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one pooled Server, registered as an MXBean so they can be
+ * read with jconsole or any JMX client while the server runs.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private final ThreadPoolExecutor executor;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    ServerMetrics(ThreadPoolExecutor executor) {
+        this.executor = executor;
+    }
+
+    void started(long waitedNanos) {
+        waitNanos.add(waitedNanos);
+        waits.increment();
+        maxWaitNanos.accumulateAndGet(waitedNanos, Math::max);
+    }
+
+    void completed() {
+        completed.increment();
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void shed() {
+        shed.increment();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveHandlers() {
+        return executor.getActiveCount();
+    }
+
+    public long getCompletedConnections() {
+        return completed.sum();
+    }
+
+    public long getRejectedConnections() {
+        return rejected.sum();
+    }
+
+    public long getShedConnections() {
+        return shed.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = waits.sum();
+        return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+}
@@ -0,0 +1,17 @@
+package clean.code.appendixA.pooled;
+
+public interface ServerMetricsMXBean {
+    int getQueueDepth();
+
+    int getActiveHandlers();
+
+    long getCompletedConnections();
+
+    long getRejectedConnections();
+
+    long getShedConnections();
+
+    double getAverageWaitMillis();
+
+    double getMaxWaitMillis();
+}
@@ -0,0 +1,271 @@
+package clean.code.appendixA.reactor;
+
+import clean.code.appendixA.MessageHandler;
+import clean.code.appendixA.MessageUtils;
+import clean.code.appendixA.jfr.AcceptEvent;
+import clean.code.appendixA.jfr.DecodeEvent;
+import clean.code.appendixA.jfr.HandlerEvent;
+import clean.code.appendixA.jfr.ServerEvent;
+import clean.code.appendixA.jfr.WriteEvent;
+import clean.code.appendixA.nio.MessageFrames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One selector thread. It owns every connection registered with it for the
+ * connection's whole life. With SO_REUSEPORT each loop also has its own
+ * listening channel; otherwise connections are accepted elsewhere and handed
+ * over with adopt.
+ */
+class EventLoop implements Runnable {
+    private static final String NAME = "reactor";
+
+    private final Selector selector;
+    private final ServerSocketChannel acceptor;
+    private final EventLoop[] handOffTargets;
+    private final MessageHandler handler;
+    private final int millisecondsTimeout;
+    private final Queue<Accepted> adopted = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> readyToReply = new ConcurrentLinkedQueue<>();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder served = new LongAdder();
+    private int nextTarget;
+    volatile boolean keepProcessing = true;
+
+    EventLoop(ServerSocketChannel acceptor, EventLoop[] handOffTargets, MessageHandler handler,
+              int millisecondsTimeout) throws IOException {
+        this.selector = Selector.open();
+        this.acceptor = acceptor;
+        this.handOffTargets = handOffTargets;
+        this.handler = handler;
+        this.millisecondsTimeout = millisecondsTimeout;
+        if (acceptor != null) {
+            acceptor.configureBlocking(false);
+            acceptor.register(selector, SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    long acceptedConnections() {
+        return accepted.sum();
+    }
+
+    long servedConnections() {
+        return served.sum();
+    }
+
+    void adopt(Accepted accepted) {
+        adopted.add(accepted);
+        selector.wakeup();
+    }
+
+    void stop() {
+        keepProcessing = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (keepProcessing) {
+            try {
+                selector.select(millisecondsTimeout);
+                registerAdopted();
+                registerReplies();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    dispatch(key);
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        closeAll();
+    }
+
+    private void dispatch(SelectionKey key) {
+        try {
+            if (!key.isValid())
+                return;
+            if (key.isAcceptable())
+                accept();
+            else if (key.isReadable())
+                read(key);
+            else if (key.isWritable())
+                write(key);
+        } catch (IOException e) {
+            closeIgnoringException(key);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = acceptor.accept()) != null) {
+                accepted.increment();
+                if (handOffTargets == null)
+                    register(new Accepted(channel));
+                else
+                    handOff(new Accepted(channel));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handOff(Accepted connection) throws IOException {
+        EventLoop target = handOffTargets[nextTarget];
+        nextTarget = (nextTarget + 1) % handOffTargets.length;
+        if (target == this)
+            register(connection);
+        else
+            target.adopt(connection);
+    }
+
+    private void registerAdopted() {
+        Accepted connection;
+        while ((connection = adopted.poll()) != null) {
+            try {
+                register(connection);
+            } catch (IOException e) {
+                closeIgnoringException(connection.channel);
+            }
+        }
+    }
+
+    private void register(Accepted connection) throws IOException {
+        SocketChannel channel = connection.channel;
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(key, connection.clientId));
+        served.increment();
+        connection.event.finish(channel.getRemoteAddress());
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(connection.buffer) < 0) {
+            closeIgnoringException(key);
+            return;
+        }
+        if (connection.decoding == null)
+            connection.decoding = DecodeEvent.begin(NAME, connection.clientId);
+        connection.buffer.flip();
+        String message = connection.frames.decode(connection.buffer);
+        connection.buffer.clear();
+        if (message == null)
+            return;
+        connection.decoding.finish();
+        connection.decoding = null;
+
+        key.interestOps(0);
+        HandlerEvent handling = HandlerEvent.begin(NAME, connection.clientId);
+        handler.handle(message).whenComplete((reply, error) -> {
+            handling.finish(error);
+            replyReady(connection, reply, error);
+        });
+    }
+
+    private void replyReady(Connection connection, String reply, Throwable error) {
+        try {
+            if (error != null)
+                error.printStackTrace();
+            else
+                connection.reply = connection.frames.encode(reply);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        readyToReply.add(connection);
+        selector.wakeup();
+    }
+
+    private void registerReplies() {
+        Connection connection;
+        while ((connection = readyToReply.poll()) != null) {
+            if (connection.reply == null)
+                closeIgnoringException(connection.key);
+            else if (connection.key.isValid())
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.writing == null)
+            connection.writing = WriteEvent.begin(NAME, connection.clientId);
+        ((SocketChannel) key.channel()).write(connection.reply);
+        if (!connection.reply.hasRemaining()) {
+            connection.writing.finish();
+            closeIgnoringException(key);
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys())
+                closeIgnoringException(key);
+            selector.close();
+        } catch (IOException ignore) {
+        }
+        Accepted connection;
+        while ((connection = adopted.poll()) != null)
+            closeIgnoringException(connection.channel);
+    }
+
+    private void closeIgnoringException(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void closeIgnoringException(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    static class Connection {
+        final SelectionKey key;
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        final MessageFrames frames = MessageFrames.create(MessageUtils.framing());
+        final long clientId;
+        ByteBuffer reply;
+        DecodeEvent decoding;
+        WriteEvent writing;
+
+        Connection(SelectionKey key, long clientId) {
+            this.key = key;
+            this.clientId = clientId;
+        }
+    }
+
+    /**
+     * A connection on its way from the accepting loop to the one that will
+     * serve it; the accept event ends when it is registered there.
+     */
+    static class Accepted {
+        final SocketChannel channel;
+        final long clientId = ServerEvent.nextClientId();
+        final AcceptEvent event = AcceptEvent.begin(NAME, clientId);
+
+        Accepted(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
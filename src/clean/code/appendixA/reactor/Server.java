@@ -0,0 +1,110 @@
+package clean.code.appendixA.reactor;
+
+import clean.code.appendixA.DelayedEchoHandler;
+import clean.code.appendixA.EventLog;
+import clean.code.appendixA.EventLog.Event;
+import clean.code.appendixA.MessageHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Several selector loops serving one port. Where SO_REUSEPORT is available
+ * (Linux) every loop binds its own listening socket to the port, the kernel
+ * spreads incoming connections over them and each loop accepts and serves
+ * its own. Elsewhere the first loop accepts for all of them and hands
+ * connections out round-robin. A connection never moves between loops.
+ */
+public class Server implements Runnable {
+    private static final int BACKLOG = 16384;
+
+    private final EventLoop[] loops;
+    private final boolean reusePort;
+
+    public Server(int port, int millisecondsTimeout) throws IOException {
+        this(port, millisecondsTimeout, Runtime.getRuntime().availableProcessors(), true,
+                new DelayedEchoHandler(1000));
+    }
+
+    public Server(int port, int millisecondsTimeout, int loopCount, boolean tryReusePort,
+                  MessageHandler handler) throws IOException {
+        loops = new EventLoop[loopCount];
+        reusePort = tryReusePort && loopCount > 1 && reusePortSupported();
+        if (reusePort) {
+            for (int i = 0; i < loopCount; i++)
+                loops[i] = new EventLoop(bind(port, true), null, handler, millisecondsTimeout);
+        } else {
+            for (int i = 1; i < loopCount; i++)
+                loops[i] = new EventLoop(null, null, handler, millisecondsTimeout);
+            loops[0] = new EventLoop(bind(port, false), loops, handler, millisecondsTimeout);
+        }
+    }
+
+    public boolean usesReusePort() {
+        return reusePort;
+    }
+
+    public long acceptedConnections() {
+        long total = 0;
+        for (EventLoop loop : loops)
+            total += loop.acceptedConnections();
+        return total;
+    }
+
+    /**
+     * Connections registered with each loop, whichever loop accepted them.
+     */
+    public long[] servedConnectionsPerLoop() {
+        long[] served = new long[loops.length];
+        for (int i = 0; i < loops.length; i++)
+            served[i] = loops[i].servedConnections();
+        return served;
+    }
+
+    /**
+     * Runs the first loop on the calling thread and the others on their own
+     * threads, returning once all of them have stopped.
+     */
+    public void run() {
+        EventLog.log(Event.SERVER_STARTING,
+                loops.length + " loops, " + (reusePort ? "SO_REUSEPORT" : "single acceptor"));
+        Thread[] threads = new Thread[loops.length];
+        for (int i = 1; i < loops.length; i++) {
+            threads[i] = new Thread(loops[i], "reactor-loop-" + i);
+            threads[i].start();
+        }
+        loops[0].run();
+        for (int i = 1; i < loops.length; i++) {
+            loops[i].stop();
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void stopProcessing() {
+        for (EventLoop loop : loops)
+            loop.stop();
+    }
+
+    private static ServerSocketChannel bind(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort)
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        channel.bind(new InetSocketAddress(port), BACKLOG);
+        return channel;
+    }
+
+    private static boolean reusePortSupported() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
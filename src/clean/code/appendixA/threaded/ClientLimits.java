@@ -0,0 +1,134 @@
+package clean.code.appendixA.threaded;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per remote address token buckets for new connections and for messages,
+ * and a cap on the replies one connection may have outstanding. A client
+ * over its connection rate is refused; one over its message rate has its
+ * messages delayed, so it slows down without taking handler time from the
+ * others.
+ */
+public class ClientLimits {
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final double connectionsPerSecond;
+  private final int connectionBurst;
+  private final double messagesPerSecond;
+  private final int messageBurst;
+  private final int maxOutstandingReplies;
+  private final Map<InetAddress, Client> clients = new ConcurrentHashMap<>();
+  private volatile long sweptAt = System.nanoTime();
+
+  private final LongAdder refusedConnections = new LongAdder();
+  private final LongAdder delayedMessages = new LongAdder();
+  private final LongAdder readPauses = new LongAdder();
+  private final LongAdder throttledClients = new LongAdder();
+
+  public ClientLimits(double connectionsPerSecond, int connectionBurst, double messagesPerSecond,
+                      int messageBurst, int maxOutstandingReplies) {
+    this.connectionsPerSecond = connectionsPerSecond;
+    this.connectionBurst = connectionBurst;
+    this.messagesPerSecond = messagesPerSecond;
+    this.messageBurst = messageBurst;
+    this.maxOutstandingReplies = maxOutstandingReplies;
+  }
+
+  public int maxOutstandingReplies() {
+    return maxOutstandingReplies;
+  }
+
+  public long refusedConnections() {
+    return refusedConnections.sum();
+  }
+
+  public long delayedMessages() {
+    return delayedMessages.sum();
+  }
+
+  /**
+   * Times a connection stopped reading because its replies were not being
+   * collected.
+   */
+  public long readPauses() {
+    return readPauses.sum();
+  }
+
+  /**
+   * Remote addresses that have been refused or delayed at least once while
+   * tracked.
+   */
+  public long throttledClients() {
+    return throttledClients.sum();
+  }
+
+  boolean tryConnect(InetAddress address) {
+    sweepIdleClients();
+    Client client = clients.computeIfAbsent(address, a -> new Client());
+    if (!client.connections.tryAcquire()) {
+      refusedConnections.increment();
+      client.throttled();
+      return false;
+    }
+    client.open.incrementAndGet();
+    return true;
+  }
+
+  void disconnected(InetAddress address) {
+    Client client = clients.get(address);
+    if (client != null)
+      client.open.decrementAndGet();
+  }
+
+  /**
+   * Blocks the connection's thread until the address may send another
+   * message.
+   */
+  void awaitMessage(InetAddress address) throws InterruptedException {
+    Client client = clients.computeIfAbsent(address, a -> new Client());
+    long wait = client.messages.reserve();
+    if (wait > 0) {
+      delayedMessages.increment();
+      client.throttled();
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  void readPaused() {
+    readPauses.increment();
+  }
+
+  /**
+   * Forgets addresses with no open connection whose buckets have refilled,
+   * so the map does not grow with every client ever seen.
+   */
+  private void sweepIdleClients() {
+    long now = System.nanoTime();
+    if (now - sweptAt < SWEEP_INTERVAL_NANOS)
+      return;
+    sweptAt = now;
+    clients.values().removeIf(Client::isIdle);
+  }
+
+  private class Client {
+    final TokenBucket connections = new TokenBucket(connectionsPerSecond, connectionBurst);
+    final TokenBucket messages = new TokenBucket(messagesPerSecond, messageBurst);
+    final AtomicInteger open = new AtomicInteger();
+    final AtomicBoolean throttled = new AtomicBoolean();
+
+    void throttled() {
+      if (throttled.compareAndSet(false, true))
+        throttledClients.increment();
+    }
+
+    boolean isIdle() {
+      return open.get() == 0 && connections.isFull() && messages.isFull();
+    }
+  }
+}
@@ -1,30 +1,108 @@
 package clean.code.appendixA.threaded;
 
+import clean.code.appendixA.DelayedEchoHandler;
+import clean.code.appendixA.EventLog;
+import clean.code.appendixA.EventLog.Event;
+import clean.code.appendixA.MessageHandler;
 import clean.code.appendixA.MessageUtils;
+import clean.code.appendixA.jfr.AcceptEvent;
+import clean.code.appendixA.jfr.DecodeEvent;
+import clean.code.appendixA.jfr.HandlerEvent;
+import clean.code.appendixA.jfr.ServerEvent;
+import clean.code.appendixA.jfr.WriteEvent;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Server implements Runnable {
+  private static final String NAME = "threaded";
+  private static final long SLOT_POLL_MILLIS = 100;
+  private static final int WRITER_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
   ServerSocket serverSocket;
   volatile boolean keepProcessing = true;
+  final boolean keepAlive;
+  final MessageHandler handler;
+  final ClientLimits limits;
+  final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+  private final ThreadPoolExecutor writers = newWriterPool();
+  private final Object drained = new Object();
+  private int inFlight;
 
   public Server(int port, int millisecondsTimeout) throws IOException {
+    this(port, millisecondsTimeout, false, 1000);
+  }
+
+  /**
+   * With keepAlive a connection carries any number of messages, possibly
+   * pipelined; replies go back in order and the server closes the socket
+   * once the client does.
+   */
+  public Server(int port, int millisecondsTimeout, boolean keepAlive, long processingMillis)
+      throws IOException {
+    this(port, millisecondsTimeout, keepAlive, new DelayedEchoHandler(processingMillis));
+  }
+
+  /**
+   * The connection thread only reads; each reply is written once the
+   * handler's future completes, on a small pool of writer threads shared by
+   * all connections. A connection's writes are chained one after another,
+   * so its replies still go out in message order. The thread completing the
+   * future never touches the socket; a client that stops reading ties up at
+   * most one writer, and only once its socket buffer is full.
+   */
+  public Server(int port, int millisecondsTimeout, boolean keepAlive, MessageHandler handler)
+      throws IOException {
+    this(port, millisecondsTimeout, keepAlive, handler, null);
+  }
+
+  /**
+   * With limits, connections and messages are rate limited per remote
+   * address, and a connection stops reading once it has
+   * maxOutstandingReplies replies waiting to be written. Null means no
+   * limits.
+   */
+  public Server(int port, int millisecondsTimeout, boolean keepAlive, MessageHandler handler,
+                ClientLimits limits) throws IOException {
     serverSocket = new ServerSocket(port);
     serverSocket.setSoTimeout(millisecondsTimeout);
+    this.keepAlive = keepAlive;
+    this.handler = handler;
+    this.limits = limits;
+  }
 
+  private static ThreadPoolExecutor newWriterPool() {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(WRITER_THREADS, WRITER_THREADS,
+        30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+          Thread thread = new Thread(r, "reply-writer");
+          thread.setDaemon(true);
+          return thread;
+        });
+    // idle writers exit, so a stopped server leaves no threads behind
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
   }
 
   public void run() {
-    System.out.printf("Server Starting\n");
+    EventLog.log(Event.SERVER_STARTING);
 
     while (keepProcessing) {
       try {
-        System.out.printf("accepting client\n");
+        EventLog.log(Event.ACCEPTING);
         Socket socket = serverSocket.accept();
-        System.out.printf("got client\n");
+        EventLog.log(Event.ACCEPTED);
         process(socket);
       } catch (Exception e) {
         handle(e);
@@ -44,31 +122,177 @@ public class Server implements Runnable {
     closeIgnoringException(serverSocket);
   }
 
+  /**
+   * Stops accepting, waits up to deadlineMillis for requests already
+   * received to be answered, then closes every connection that is left.
+   * Idle keep-alive connections are closed without waiting, and messages
+   * read from them after shutdown begins are not admitted.
+   *
+   * @return the number of requests dropped unanswered
+   */
+  public int shutdown(long deadlineMillis) throws InterruptedException {
+    stopProcessing();
+    long deadline = System.currentTimeMillis() + deadlineMillis;
+    int dropped;
+    synchronized (drained) {
+      long remaining;
+      while (inFlight > 0 && (remaining = deadline - System.currentTimeMillis()) > 0)
+        drained.wait(remaining);
+      dropped = inFlight;
+    }
+    for (Socket socket : connections)
+      closeIgnoringException(socket);
+    EventLog.log(Event.SHUT_DOWN, dropped);
+    return dropped;
+  }
+
+  int inFlight() {
+    synchronized (drained) {
+      return inFlight;
+    }
+  }
+
+  private void requestStarted() {
+    synchronized (drained) {
+      inFlight++;
+    }
+  }
+
+  /**
+   * Admits a keep-alive message unless shutdown has begun. Checked under
+   * the same lock shutdown waits on, so shutdown never misses a message
+   * admitted just as it starts.
+   */
+  private boolean tryRequestStarted() {
+    synchronized (drained) {
+      if (!keepProcessing)
+        return false;
+      inFlight++;
+      return true;
+    }
+  }
+
+  private void requestFinished() {
+    synchronized (drained) {
+      if (--inFlight == 0)
+        drained.notifyAll();
+    }
+  }
+
   void process(final Socket socket) {
     if (socket == null)
       return;
 
+    final long clientId = ServerEvent.nextClientId();
+    AcceptEvent accepted = AcceptEvent.begin(NAME, clientId);
+    final InetAddress client = socket.getInetAddress();
+    if (limits != null && !limits.tryConnect(client)) {
+      EventLog.log(Event.REFUSED, client);
+      closeIgnoringException(socket);
+      accepted.finish(socket.getRemoteSocketAddress());
+      return;
+    }
+    final Semaphore outstanding =
+        limits == null ? null : new Semaphore(limits.maxOutstandingReplies());
+    connections.add(socket);
+    // without keepAlive the connection is the request, in flight from accept
+    if (!keepAlive)
+      requestStarted();
     Runnable clientHandler = new Runnable() {
       @Override
       public void run() {
+        CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        boolean awaitingRequest = !keepAlive;
         try {
-          System.out.printf("Server: getting message\n");
-          String message = MessageUtils.getMessage(socket);
-          System.out.printf("Server: got message: %s\n", message);
-          Thread.sleep(1000);
-          System.out.printf("Server: sending reply: %s\n", message);
-          MessageUtils.sendMessage(socket, "Processed: " + message);
-          System.out.printf("Server: sent\n");
-          closeIgnoringException(socket);
+          do {
+            if (outstanding != null && !awaitReplySlot(outstanding, socket))
+              break;
+            EventLog.log(Event.GETTING_MESSAGE);
+            DecodeEvent decoded = DecodeEvent.begin(NAME, clientId);
+            final String message = MessageUtils.getMessage(socket);
+            decoded.finish();
+            EventLog.log(Event.GOT_MESSAGE, message);
+            if (keepAlive && !tryRequestStarted()) {
+              if (outstanding != null)
+                outstanding.release();
+              break;
+            }
+            awaitingRequest = false;
+            if (limits != null)
+              limits.awaitMessage(client);
+            HandlerEvent handling = HandlerEvent.begin(NAME, clientId);
+            CompletableFuture<String> handled;
+            try {
+              handled = handler.handle(message);
+            } catch (RuntimeException e) {
+              // fail this reply like an asynchronous failure, so the request still finishes
+              handled = new CompletableFuture<>();
+              handled.completeExceptionally(e);
+            }
+            handled.whenComplete((reply, error) -> handling.finish(error));
+            written = written.thenCombine(handled, (previous, reply) -> reply)
+                .thenAcceptAsync(reply -> sendReply(socket, clientId, message, reply), writers)
+                .whenComplete((done, error) -> {
+                  if (outstanding != null)
+                    outstanding.release();
+                  requestFinished();
+                  // later replies can't go out in order; closing wakes the reader
+                  if (error != null)
+                    closeIgnoringException(socket);
+                });
+          } while (keepAlive);
+        } catch (EOFException e) {
+          if (!keepAlive)
+            e.printStackTrace();
         } catch (Exception e) {
-          e.printStackTrace();
+          if (keepProcessing)
+            e.printStackTrace();
         }
+        if (awaitingRequest)
+          requestFinished();
+        written.whenComplete((done, error) -> {
+          if (error != null && keepProcessing)
+            error.printStackTrace();
+          closeIgnoringException(socket);
+          connections.remove(socket);
+          if (limits != null)
+            limits.disconnected(client);
+        });
       }
     };
 
     Thread clientConnection = new Thread(clientHandler);
     clientConnection.start();
+    accepted.finish(socket.getRemoteSocketAddress());
+
+  }
+
+  /**
+   * Takes one of the connection's reply slots, pausing the reader while
+   * they are all taken. Waits in short slices so a reader paused on a client
+   * that stopped reading notices shutdown or a closed socket; returns false
+   * then.
+   */
+  private boolean awaitReplySlot(Semaphore outstanding, Socket socket) throws InterruptedException {
+    if (outstanding.tryAcquire())
+      return true;
+    limits.readPaused();
+    while (!outstanding.tryAcquire(SLOT_POLL_MILLIS, TimeUnit.MILLISECONDS))
+      if (!keepProcessing || socket.isClosed())
+        return false;
+    return true;
+  }
 
+  private void sendReply(Socket socket, long clientId, String message, String reply) {
+    try {
+      EventLog.log(Event.SENDING_REPLY, message);
+      WriteEvent writing = WriteEvent.begin(NAME, clientId);
+      MessageUtils.sendMessage(socket, reply);
+      writing.finish();
+      EventLog.log(Event.SENT);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   private void closeIgnoringException(Socket socket) {
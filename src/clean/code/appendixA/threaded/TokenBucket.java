@@ -0,0 +1,49 @@
+package clean.code.appendixA.threaded;
+
+/**
+ * Holds up to capacity tokens and refills at a steady rate.
+ */
+class TokenBucket {
+  private final double capacity;
+  private final double tokensPerNano;
+  private double tokens;
+  private long refilledAt;
+
+  TokenBucket(double perSecond, int capacity) {
+    this.capacity = capacity;
+    this.tokensPerNano = perSecond / 1e9;
+    this.tokens = capacity;
+    this.refilledAt = System.nanoTime();
+  }
+
+  synchronized boolean tryAcquire() {
+    refill();
+    if (tokens < 1)
+      return false;
+    tokens--;
+    return true;
+  }
+
+  /**
+   * Takes a token whether or not one is there yet, so callers are served
+   * in the order they asked.
+   *
+   * @return how long the caller must wait before using it, in nanoseconds
+   */
+  synchronized long reserve() {
+    refill();
+    tokens--;
+    return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+  }
+
+  synchronized boolean isFull() {
+    refill();
+    return tokens >= capacity;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+    refilledAt = now;
+  }
+}
@@ -0,0 +1,111 @@
+package clean.code.appendixA.virtual;
+
+import clean.code.appendixA.EventLog;
+import clean.code.appendixA.EventLog.Event;
+import clean.code.appendixA.MessageUtils;
+import clean.code.appendixA.jfr.AcceptEvent;
+import clean.code.appendixA.jfr.DecodeEvent;
+import clean.code.appendixA.jfr.HandlerEvent;
+import clean.code.appendixA.jfr.ServerEvent;
+import clean.code.appendixA.jfr.WriteEvent;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * threaded.Server with each client handled on a virtual thread (JDK 21), so
+ * the blocking MessageUtils calls and the sleep park the virtual thread
+ * instead of holding a platform thread. The constructor throws
+ * IllegalStateException on older JVMs.
+ */
+public class Server implements Runnable {
+    private static final String NAME = "virtual";
+    private static final int BACKLOG = 16384;
+
+    private final ThreadFactory handlers = VirtualThreads.factory("client-handler");
+    ServerSocket serverSocket;
+    volatile boolean keepProcessing = true;
+
+    public Server(int port, int millisecondsTimeout) throws IOException {
+        serverSocket = new ServerSocket(port, BACKLOG);
+        serverSocket.setSoTimeout(millisecondsTimeout);
+
+    }
+
+    public void run() {
+        EventLog.log(Event.SERVER_STARTING);
+
+        while (keepProcessing) {
+            try {
+                EventLog.log(Event.ACCEPTING);
+                Socket socket = serverSocket.accept();
+                EventLog.log(Event.ACCEPTED);
+                process(socket);
+            } catch (Exception e) {
+                handle(e);
+            }
+        }
+
+    }
+
+    private void handle(Exception e) {
+        if (!(e instanceof SocketException)) {
+            e.printStackTrace();
+        }
+    }
+
+    public void stopProcessing() {
+        keepProcessing = false;
+        closeIgnoringException(serverSocket);
+    }
+
+    void process(final Socket socket) {
+        if (socket == null)
+            return;
+
+        final long clientId = ServerEvent.nextClientId();
+        AcceptEvent accepted = AcceptEvent.begin(NAME, clientId);
+        handlers.newThread(() -> {
+            try {
+                EventLog.log(Event.GETTING_MESSAGE);
+                DecodeEvent decoded = DecodeEvent.begin(NAME, clientId);
+                String message = MessageUtils.getMessage(socket);
+                decoded.finish();
+                EventLog.log(Event.GOT_MESSAGE, message);
+                HandlerEvent handling = HandlerEvent.begin(NAME, clientId);
+                Thread.sleep(1000);
+                handling.finish(null);
+                EventLog.log(Event.SENDING_REPLY, message);
+                WriteEvent writing = WriteEvent.begin(NAME, clientId);
+                MessageUtils.sendMessage(socket, "Processed: " + message);
+                writing.finish();
+                EventLog.log(Event.SENT);
+                closeIgnoringException(socket);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        accepted.finish(socket.getRemoteSocketAddress());
+    }
+
+    private void closeIgnoringException(Socket socket) {
+        if (socket != null)
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+
+    }
+
+    private void closeIgnoringException(ServerSocket serverSocket) {
+        if (serverSocket != null)
+            try {
+                serverSocket.close();
+            } catch (IOException ignore) {
+            }
+
+    }
+}
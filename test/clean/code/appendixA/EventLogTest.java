@@ -0,0 +1,83 @@
+package clean.code.appendixA;
+
+import clean.code.appendixA.EventLog.Event;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventLogTest {
+    @Test
+    public void shouldPrintEventsInOrder() throws Exception {
+        EventLog log = new EventLog(8);
+        log.append(Event.ACCEPTED, null);
+        log.append(Event.GOT_MESSAGE, "hello");
+        log.append(Event.SENT, null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(3, log.drainTo(new PrintStream(out, true, "UTF-8")));
+        assertEquals("got client\nServer: got message: hello\nServer: sent\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void shouldDropEventsWhenFull() throws Exception {
+        EventLog log = new EventLog(4);
+        for (int i = 0; i < 4; i++)
+            assertTrue(log.append(Event.SENT, i));
+        assertFalse(log.append(Event.SENT, 4));
+        assertEquals(1, log.dropped());
+
+        assertEquals(4, log.drainTo(new PrintStream(new ByteArrayOutputStream())));
+        assertTrue(log.append(Event.SENT, 5));
+    }
+
+    @Test
+    public void shouldRoundCapacityUpToAPowerOfTwo() {
+        assertEquals(8, new EventLog(5).capacity());
+        assertEquals(8, new EventLog(8).capacity());
+    }
+
+    @Test(timeout = 10000)
+    public void shouldAccountForEveryEventFromConcurrentWriters() throws Exception {
+        final EventLog log = new EventLog(64);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final int[] drained = new int[1];
+        final PrintStream sink = new PrintStream(new ByteArrayOutputStream() {
+            public synchronized void write(byte[] b, int off, int len) {
+            }
+        });
+        Thread drainer = new Thread(() -> {
+            while (writing.get())
+                drained[0] += log.drainTo(sink);
+            drained[0] += log.drainTo(sink);
+        });
+        drainer.start();
+
+        Thread[] writers = new Thread[4];
+        final int[] appended = new int[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            final int writer = i;
+            writers[i] = new Thread(() -> {
+                for (int m = 0; m < 10000; m++)
+                    if (log.append(Event.GOT_MESSAGE, m))
+                        appended[writer]++;
+            });
+            writers[i].start();
+        }
+        int total = 0;
+        for (int i = 0; i < writers.length; i++) {
+            writers[i].join();
+            total += appended[i];
+        }
+        writing.set(false);
+        drainer.join();
+
+        assertEquals(40000, total + log.dropped());
+        assertEquals(total, drained[0]);
+    }
+}
@@ -0,0 +1,122 @@
+package clean.code.appendixA.client;
+
+import clean.code.appendixA.DelayedEchoHandler;
+import clean.code.appendixA.MessageHandler;
+import clean.code.appendixA.threaded.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncClientTest {
+    private static final int PORT = 8009;
+    private static final int TIMEOUT = 2000;
+
+    Server server;
+    Thread serverThread;
+    AsyncClient client;
+
+    @Before
+    public void createServerAndClient() throws Exception {
+        startServer(new DelayedEchoHandler(10));
+        client = new AsyncClient("localhost", PORT, 4, 5000);
+    }
+
+    @After
+    public void shutdown() throws InterruptedException {
+        client.close();
+        stopServer();
+    }
+
+    private void startServer(MessageHandler handler) throws Exception {
+        server = new Server(PORT, TIMEOUT, true, handler);
+        serverThread = new Thread(server);
+        serverThread.start();
+    }
+
+    private void stopServer() throws InterruptedException {
+        server.stopProcessing();
+        serverThread.join();
+    }
+
+    @Test(timeout = 10000)
+    public void shouldPipelineManyRequestsOverFewConnections() throws Exception {
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            replies.add(client.sendAndReceive(Integer.toString(i)));
+        for (int i = 0; i < replies.size(); i++)
+            assertEquals("Processed: " + i, replies.get(i).get());
+    }
+
+    @Test(timeout = 10000)
+    public void shouldTimeOutSlowRequests() throws Exception {
+        stopServer();
+        startServer(message -> new CompletableFuture<>());
+        try {
+            client.sendAndReceive("never answered", 100, TimeUnit.MILLISECONDS).get();
+            fail("expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldTimeOutWithoutBlockingTheCallerWhileConnecting() throws Exception {
+        List<Socket> queued = new ArrayList<>();
+        try (ServerSocket neverAccepting = new ServerSocket(PORT + 1, 1)) {
+            // once the accept queue is full, further connects hang
+            while (true) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress("localhost", PORT + 1), 200);
+                    queued.add(socket);
+                } catch (SocketTimeoutException e) {
+                    socket.close();
+                    break;
+                }
+            }
+            AsyncClient stalled = new AsyncClient("localhost", PORT + 1, 1, 5000);
+            try {
+                long start = System.nanoTime();
+                CompletableFuture<String> reply = stalled.sendAndReceive("stalled", 300, TimeUnit.MILLISECONDS);
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+                try {
+                    reply.get();
+                    fail("expected a timeout");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof TimeoutException);
+                }
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+            } finally {
+                stalled.close();
+            }
+        } finally {
+            for (Socket socket : queued)
+                socket.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldReconnectAfterConnectionsAreLost() throws Exception {
+        for (int i = 0; i < 4; i++)
+            assertEquals("Processed: before", client.sendAndReceive("before").get());
+        for (PipelinedConnection connection : client.connections)
+            connection.close();
+        for (int i = 0; i < 4; i++)
+            assertEquals("Processed: after", client.sendAndReceive("after").get());
+    }
+}
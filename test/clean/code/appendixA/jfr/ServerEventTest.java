@@ -0,0 +1,64 @@
+package clean.code.appendixA.jfr;
+
+import clean.code.appendixA.DelayedEchoHandler;
+import clean.code.appendixA.MessageUtils;
+import clean.code.appendixA.threaded.Server;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServerEventTest {
+    private static final int PORT = 8030;
+    private static final int TIMEOUT = 2000;
+
+    @Test(timeout = 10000)
+    public void shouldRecordEachStepOfAConnection() throws Exception {
+        Path file = Files.createTempFile("appendixA", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[]{"Accept", "Decode", "Handler", "Write"})
+                recording.enable("clean.code.appendixA." + name).withThreshold(Duration.ZERO);
+            recording.start();
+
+            Server server = new Server(PORT, TIMEOUT, false, new DelayedEchoHandler(50));
+            Thread serverThread = new Thread(server);
+            serverThread.start();
+            try (Socket socket = new Socket("localhost", PORT)) {
+                MessageUtils.sendMessage(socket, "message");
+                MessageUtils.getMessage(socket);
+            } finally {
+                server.stopProcessing();
+                serverThread.join();
+            }
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        Map<String, RecordedEvent> byName = new HashMap<>();
+        for (RecordedEvent event : events)
+            byName.put(event.getEventType().getName(), event);
+
+        assertEquals(4, byName.size());
+        long clientId = byName.get("clean.code.appendixA.Accept").getLong("clientId");
+        for (RecordedEvent event : byName.values()) {
+            assertEquals("threaded", event.getString("server"));
+            assertEquals(clientId, event.getLong("clientId"));
+        }
+        assertTrue(byName.get("clean.code.appendixA.Handler").getDuration().toMillis() >= 40);
+        assertEquals(false, byName.get("clean.code.appendixA.Handler").getBoolean("failed"));
+    }
+}
@@ -0,0 +1,48 @@
+package clean.code.appendixA.loadgen;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++)
+            histogram.record(i);
+        assertEquals(50, histogram.percentile(50));
+        assertEquals(99, histogram.percentile(99));
+        assertEquals(100, histogram.percentile(100));
+        assertEquals(50.5, histogram.mean(), 1e-9);
+    }
+
+    @Test
+    public void largeValuesAreWithinOneSixtyFourth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1000; value < 10_000_000_000L; value = value * 3 + 7) {
+            LatencyHistogram single = new LatencyHistogram();
+            single.record(value);
+            single.record(Long.MAX_VALUE / 4);
+            long reported = single.percentile(50);
+            assertTrue(value + " reported as " + reported, reported >= value && reported <= value + value / 64);
+            histogram.record(value);
+        }
+        assertEquals(histogram.max(), histogram.percentile(100));
+    }
+
+    @Test
+    public void bucketBoundariesRoundTrip() {
+        for (long value : new long[]{127, 128, 129, 255, 256, 1L << 40, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.highestValueAt(index) >= value);
+            if (index > 0)
+                assertTrue(LatencyHistogram.highestValueAt(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void percentileOfEmptyHistogramIsZero() {
+        assertEquals(0, new LatencyHistogram().percentile(99));
+    }
+}
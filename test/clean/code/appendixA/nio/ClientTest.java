@@ -0,0 +1,137 @@
+package clean.code.appendixA.nio;
+
+import clean.code.appendixA.DelayedEchoHandler;
+import clean.code.appendixA.MessageUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClientTest {
+    private static final int PORT = 8009;
+    private static final int TIMEOUT = 2000;
+    private static final int CLIENTS = 10000;
+
+    Server server;
+    Thread serverThread;
+
+    @Before
+    public void createServer() throws Exception {
+        try {
+            server = new Server(PORT, TIMEOUT);
+            serverThread = new Thread(server);
+            serverThread.start();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            throw e;
+        }
+    }
+
+    @After
+    public void shutdownServer() throws InterruptedException {
+        if (server != null) {
+            server.stopProcessing();
+            serverThread.join();
+        }
+    }
+
+    class TrivialClient implements Runnable {
+        int clientNumber;
+
+        TrivialClient(int clientNumber) {
+            this.clientNumber = clientNumber;
+        }
+
+        public void run() {
+            try {
+                connectSendReceive(clientNumber);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldRunInUnder10Seconds() throws Exception {
+        Thread[] threads = new Thread[CLIENTS];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new TrivialClient(i));
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i].join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldPassBufferViewsToBufferHandler() throws Exception {
+        final byte[] prefix = "Processed: ".getBytes(StandardCharsets.UTF_8);
+        // asserted on the test thread: an AssertionError on the selector thread would never reach JUnit
+        final AtomicBoolean allReadOnly = new AtomicBoolean(true);
+        Server bufferServer = new Server(PORT + 1, TIMEOUT, (ByteBuffer message) -> {
+            if (!message.isReadOnly())
+                allReadOnly.set(false);
+            ByteBuffer reply = ByteBuffer.allocate(prefix.length + message.remaining());
+            reply.put(prefix).put(message).flip();
+            return CompletableFuture.completedFuture(reply);
+        });
+        Thread bufferThread = new Thread(bufferServer);
+        bufferThread.start();
+        try {
+            for (int i = 0; i < 100; ++i) {
+                Socket socket = new Socket("localhost", PORT + 1);
+                MessageUtils.sendMessage(socket, "message " + i);
+                assertEquals("Processed: message " + i, MessageUtils.getMessage(socket));
+                socket.close();
+            }
+        } finally {
+            bufferServer.stopProcessing();
+            bufferThread.join();
+        }
+        assertTrue(allReadOnly.get());
+    }
+
+    @Test(timeout = 10000)
+    public void shouldServeClientsOverUnixDomainSockets() throws Exception {
+        Path directory = Files.createTempDirectory("appendixA");
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(directory.resolve("server.sock"));
+        Server unixServer = new Server(address, TIMEOUT, new DelayedEchoHandler(0));
+        Thread unixThread = new Thread(unixServer);
+        unixThread.start();
+        try {
+            for (int i = 0; i < 100; ++i) {
+                try (SocketChannel channel = SocketChannel.open(address)) {
+                    MessageUtils.sendMessage(channel, "message " + i);
+                    assertEquals("Processed: message " + i, MessageUtils.getMessage(channel));
+                }
+            }
+        } finally {
+            unixServer.stopProcessing();
+            unixThread.join();
+        }
+        assertFalse(Files.exists(address.getPath()));
+        Files.delete(directory);
+    }
+
+    private void connectSendReceive(int i) throws IOException {
+        Socket socket = new Socket("localhost", PORT);
+        MessageUtils.sendMessage(socket, Integer.toString(i));
+        MessageUtils.getMessage(socket);
+        socket.close();
+    }
+}
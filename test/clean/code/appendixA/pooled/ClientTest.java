@@ -0,0 +1,117 @@
+package clean.code.appendixA.pooled;
+
+import clean.code.appendixA.MessageUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClientTest {
+    private static final int PORT = 8009;
+    private static final int TIMEOUT = 2000;
+
+    Server server;
+    Thread serverThread;
+
+    @Before
+    public void createServer() throws Exception {
+        try {
+            server = new Server(PORT, TIMEOUT);
+            serverThread = new Thread(server);
+            serverThread.start();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            throw e;
+        }
+    }
+
+    @After
+    public void shutdownServer() throws InterruptedException {
+        if (server != null) {
+            server.stopProcessing();
+            serverThread.join();
+        }
+    }
+
+    class TrivialClient implements Runnable {
+        int clientNumber;
+
+        TrivialClient(int clientNumber) {
+            this.clientNumber = clientNumber;
+        }
+
+        public void run() {
+            try {
+                connectSendReceive(clientNumber);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldRunInUnder10Seconds() throws Exception {
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new TrivialClient(i));
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i].join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldRejectClientsBeyondQueueCapacity() throws Exception {
+        Server saturated = new Server(PORT + 1, TIMEOUT, 1, 1, OverloadPolicy.REJECT);
+        Thread saturatedThread = new Thread(saturated);
+        saturatedThread.start();
+        try {
+            Thread[] threads = new Thread[5];
+            for (int i = 0; i < threads.length; ++i) {
+                final int clientNumber = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        connectSendReceive(PORT + 1, clientNumber);
+                    } catch (IOException expectedForRejectedClients) {
+                    }
+                });
+                threads[i].start();
+            }
+
+            for (int i = 0; i < threads.length; ++i) {
+                threads[i].join();
+            }
+            assertEquals(3, saturated.getMetrics().getRejectedConnections());
+            // a worker counts its connection after the reply has reached the client
+            long deadline = System.currentTimeMillis() + 2000;
+            while (saturated.getMetrics().getCompletedConnections() < 2
+                    && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(2, saturated.getMetrics().getCompletedConnections());
+        } finally {
+            saturated.stopProcessing();
+            saturatedThread.join();
+        }
+    }
+
+    private void connectSendReceive(int i) throws IOException {
+        connectSendReceive(PORT, i);
+    }
+
+    private void connectSendReceive(int port, int i) throws IOException {
+        System.out.printf("Client %2d: connecting\n", i);
+        Socket socket = new Socket("localhost", port);
+        System.out.printf("Client %2d: sending message\n", i);
+        MessageUtils.sendMessage(socket, Integer.toString(i));
+        System.out.printf("Client %2d: getting reply\n", i);
+        MessageUtils.getMessage(socket);
+        System.out.printf("Client %2d: finished\n", i);
+        socket.close();
+    }
+}
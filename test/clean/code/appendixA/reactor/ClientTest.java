@@ -0,0 +1,122 @@
+package clean.code.appendixA.reactor;
+
+import clean.code.appendixA.DelayedEchoHandler;
+import clean.code.appendixA.MessageUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClientTest {
+    private static final int PORT = 8009;
+    private static final int TIMEOUT = 2000;
+    private static final int CLIENTS = 10000;
+
+    Server server;
+    Thread serverThread;
+
+    @Before
+    public void createServer() throws Exception {
+        try {
+            server = new Server(PORT, TIMEOUT);
+            serverThread = new Thread(server);
+            serverThread.start();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            throw e;
+        }
+    }
+
+    @After
+    public void shutdownServer() throws InterruptedException {
+        if (server != null) {
+            server.stopProcessing();
+            serverThread.join();
+        }
+    }
+
+    class TrivialClient implements Runnable {
+        int clientNumber;
+
+        TrivialClient(int clientNumber) {
+            this.clientNumber = clientNumber;
+        }
+
+        public void run() {
+            try {
+                connectSendReceive(clientNumber);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldRunInUnder10Seconds() throws Exception {
+        Thread[] threads = new Thread[CLIENTS];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new TrivialClient(i));
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i].join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldSpreadClientsFromSingleAcceptor() throws Exception {
+        Server fallback = new Server(PORT + 1, TIMEOUT, 4, false, new DelayedEchoHandler(100));
+        assertFalse(fallback.usesReusePort());
+        Thread fallbackThread = new Thread(fallback);
+        fallbackThread.start();
+        try {
+            Thread[] threads = new Thread[100];
+            final AtomicReferenceArray<String> replies = new AtomicReferenceArray<>(threads.length);
+            for (int i = 0; i < threads.length; ++i) {
+                final int clientNumber = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        replies.set(clientNumber, connectSendReceive(PORT + 1, clientNumber));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+                threads[i].start();
+            }
+
+            for (int i = 0; i < threads.length; ++i) {
+                threads[i].join();
+            }
+            assertEquals(100, fallback.acceptedConnections());
+            for (int i = 0; i < threads.length; ++i)
+                assertEquals("Processed: " + i, replies.get(i));
+            long[] served = fallback.servedConnectionsPerLoop();
+            assertEquals(4, served.length);
+            for (int loop = 0; loop < served.length; loop++)
+                assertTrue("loop " + loop + " served no connections", served[loop] > 0);
+        } finally {
+            fallback.stopProcessing();
+            fallbackThread.join();
+        }
+    }
+
+    private void connectSendReceive(int i) throws IOException {
+        connectSendReceive(PORT, i);
+    }
+
+    private String connectSendReceive(int port, int i) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        MessageUtils.sendMessage(socket, Integer.toString(i));
+        String reply = MessageUtils.getMessage(socket);
+        socket.close();
+        return reply;
+    }
+}
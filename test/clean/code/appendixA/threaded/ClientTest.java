@@ -1,12 +1,25 @@
 package clean.code.appendixA.threaded;
 
+import clean.code.appendixA.DelayedEchoHandler;
 import clean.code.appendixA.MessageUtils;
+import clean.code.appendixA.client.Connection;
+import clean.code.appendixA.client.ConnectionPool;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ClientTest {
     private static final int PORT = 8009;
@@ -64,6 +77,281 @@ public class ClientTest {
         }
     }
 
+    @Test(timeout = 10000)
+    public void shouldPipelineMessagesOnKeepAliveConnections() throws Exception {
+        Server keepAliveServer = new Server(PORT + 1, TIMEOUT, true, 100);
+        Thread keepAliveThread = new Thread(keepAliveServer);
+        keepAliveThread.start();
+        final ConnectionPool pool = new ConnectionPool("localhost", PORT + 1, 2);
+        final List<Throwable> failures = new ArrayList<>();
+        try {
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; ++i) {
+                final int client = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        List<String> messages = new ArrayList<>();
+                        for (int m = 0; m < 10; m++)
+                            messages.add(client + "-" + m);
+                        List<String> replies = pool.withConnection(5, TimeUnit.SECONDS,
+                                connection -> connection.pipeline(messages));
+                        for (int m = 0; m < messages.size(); m++)
+                            assertEquals("Processed: " + messages.get(m), replies.get(m));
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+
+            for (int i = 0; i < threads.length; ++i) {
+                threads[i].join();
+            }
+            assertEquals(new ArrayList<Throwable>(), failures);
+        } finally {
+            pool.close();
+            keepAliveServer.stopProcessing();
+            keepAliveThread.join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldAnswerInFlightRequestsBeforeShuttingDown() throws Exception {
+        Server drainingServer = new Server(PORT + 2, TIMEOUT, false, 500);
+        Thread drainingThread = new Thread(drainingServer);
+        drainingThread.start();
+        final List<String> replies = new ArrayList<>();
+        Thread[] threads = startClients(PORT + 2, 5, replies);
+        awaitInFlight(drainingServer, threads.length);
+
+        assertEquals(0, drainingServer.shutdown(5000));
+        drainingThread.join();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(threads.length, replies.size());
+    }
+
+    @Test(timeout = 10000)
+    public void shouldDropRequestsStillInFlightAtTheDeadline() throws Exception {
+        Server drainingServer = new Server(PORT + 3, TIMEOUT, false, 5000);
+        Thread drainingThread = new Thread(drainingServer);
+        drainingThread.start();
+        final List<String> replies = new ArrayList<>();
+        Thread[] threads = startClients(PORT + 3, 5, replies);
+        awaitInFlight(drainingServer, threads.length);
+
+        assertEquals(threads.length, drainingServer.shutdown(200));
+        drainingThread.join();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, replies.size());
+    }
+
+    @Test(timeout = 10000)
+    public void shouldRefuseConnectionsOverTheClientsRate() throws Exception {
+        ClientLimits limits = new ClientLimits(0.1, 2, 1000, 1000, 16);
+        Server limitedServer = new Server(PORT + 4, TIMEOUT, false, new DelayedEchoHandler(0), limits);
+        Thread limitedThread = new Thread(limitedServer);
+        limitedThread.start();
+        try {
+            final List<String> replies = new ArrayList<>();
+            for (Thread thread : startClients(PORT + 4, 5, replies))
+                thread.join();
+            assertEquals(2, replies.size());
+            assertEquals(3, limits.refusedConnections());
+            assertEquals(1, limits.throttledClients());
+        } finally {
+            limitedServer.stopProcessing();
+            limitedThread.join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldDelayMessagesOverTheClientsRate() throws Exception {
+        ClientLimits limits = new ClientLimits(1000, 1000, 20, 5, 16);
+        Server limitedServer = new Server(PORT + 5, TIMEOUT, true, new DelayedEchoHandler(0), limits);
+        Thread limitedThread = new Thread(limitedServer);
+        limitedThread.start();
+        try (Connection connection = new Connection("localhost", PORT + 5)) {
+            List<String> messages = new ArrayList<>();
+            for (int m = 0; m < 15; m++)
+                messages.add(Integer.toString(m));
+            long start = System.nanoTime();
+            List<String> replies = connection.pipeline(messages);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            for (int m = 0; m < messages.size(); m++)
+                assertEquals("Processed: " + messages.get(m), replies.get(m));
+            assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 400);
+            assertTrue(limits.delayedMessages() >= 9);
+        } finally {
+            limitedServer.stopProcessing();
+            limitedThread.join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldStopReadingWhileRepliesAreOutstanding() throws Exception {
+        final List<CompletableFuture<String>> pending = new ArrayList<>();
+        ClientLimits limits = new ClientLimits(1000, 1000, 1000, 1000, 2);
+        Server limitedServer = new Server(PORT + 6, TIMEOUT, true, message -> {
+            CompletableFuture<String> reply = new CompletableFuture<>();
+            synchronized (pending) {
+                pending.add(reply);
+            }
+            return reply;
+        }, limits);
+        Thread limitedThread = new Thread(limitedServer);
+        limitedThread.start();
+        try (Connection connection = new Connection("localhost", PORT + 6)) {
+            for (int m = 0; m < 5; m++)
+                connection.send(Integer.toString(m));
+            while (limits.readPauses() == 0)
+                Thread.sleep(10);
+            synchronized (pending) {
+                assertEquals(2, pending.size());
+            }
+
+            for (int m = 0; m < 5; m++) {
+                CompletableFuture<String> reply;
+                do {
+                    synchronized (pending) {
+                        reply = pending.size() > m ? pending.get(m) : null;
+                    }
+                    Thread.sleep(10);
+                } while (reply == null);
+                reply.complete("reply " + m);
+                assertEquals("reply " + m, connection.receive());
+            }
+        } finally {
+            limitedServer.stopProcessing();
+            limitedThread.join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldKeepAnsweringWhileAnotherClientIgnoresItsReply() throws Exception {
+        Server echoServer = new Server(PORT + 7, TIMEOUT, false, 50);
+        Thread echoThread = new Thread(echoServer);
+        echoThread.start();
+        char[] large = new char[8 * 1024 * 1024];
+        Arrays.fill(large, 'x');
+        try (Socket stalled = new Socket("localhost", PORT + 7)) {
+            MessageUtils.sendMessage(stalled, new String(large));
+            Thread.sleep(500);
+
+            try (Socket socket = new Socket("localhost", PORT + 7)) {
+                socket.setSoTimeout(5000);
+                MessageUtils.sendMessage(socket, "hi");
+                assertEquals("Processed: hi", MessageUtils.getMessage(socket));
+            }
+        } finally {
+            echoServer.stopProcessing();
+            echoThread.join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldDrainKeepAliveConnectionsWithoutAdmittingNewMessages() throws Exception {
+        final Server drainingServer = new Server(PORT + 8, TIMEOUT, true, 500);
+        Thread drainingThread = new Thread(drainingServer);
+        drainingThread.start();
+        final AtomicInteger dropped = new AtomicInteger(-1);
+        try (Connection connection = new Connection("localhost", PORT + 8)) {
+            connection.send("before");
+            awaitInFlight(drainingServer, 1);
+            Thread shutdown = new Thread(() -> {
+                try {
+                    dropped.set(drainingServer.shutdown(5000));
+                } catch (InterruptedException ignore) {
+                }
+            });
+            shutdown.start();
+            while (drainingServer.keepProcessing)
+                Thread.sleep(10);
+            connection.send("after");
+
+            assertEquals("Processed: before", connection.receive());
+            shutdown.join();
+            assertEquals(0, dropped.get());
+            assertEquals(0, drainingServer.inFlight());
+            try {
+                connection.receive();
+                fail("a message sent after shutdown began was answered");
+            } catch (IOException expected) {
+            }
+        }
+        drainingThread.join();
+    }
+
+    @Test(timeout = 10000)
+    public void shouldFinishRequestsWhoseHandlerThrows() throws Exception {
+        Server failingServer = new Server(PORT + 9, TIMEOUT, true, message -> {
+            throw new IllegalStateException("handler failed on " + message);
+        });
+        Thread failingThread = new Thread(failingServer);
+        failingThread.start();
+        try (Connection connection = new Connection("localhost", PORT + 9)) {
+            connection.send("boom");
+            try {
+                connection.receive();
+                fail("a failed request was answered");
+            } catch (IOException expected) {
+            }
+            assertEquals(0, failingServer.inFlight());
+            assertEquals(0, failingServer.shutdown(1000));
+        } finally {
+            failingThread.join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldWakePausedReadersOnShutdown() throws Exception {
+        ClientLimits limits = new ClientLimits(1000, 1000, 1000, 1000, 1);
+        Server limitedServer = new Server(PORT + 10, TIMEOUT, true, message -> new CompletableFuture<>(), limits);
+        // connection threads are started by the server thread, so they join its group
+        ThreadGroup serverThreads = new ThreadGroup("paused-readers");
+        Thread limitedThread = new Thread(serverThreads, limitedServer);
+        limitedThread.start();
+        try (Connection connection = new Connection("localhost", PORT + 10)) {
+            connection.send("0");
+            connection.send("1");
+            while (limits.readPauses() == 0)
+                Thread.sleep(10);
+
+            limitedServer.stopProcessing();
+            limitedThread.join();
+            while (serverThreads.activeCount() > 0)
+                Thread.sleep(10);
+        }
+    }
+
+    private Thread[] startClients(final int port, int count, final List<String> replies) {
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < threads.length; ++i) {
+            final int client = i;
+            threads[i] = new Thread(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    MessageUtils.sendMessage(socket, Integer.toString(client));
+                    String reply = MessageUtils.getMessage(socket);
+                    synchronized (replies) {
+                        replies.add(reply);
+                    }
+                } catch (IOException expectedWhenDropped) {
+                }
+            });
+            threads[i].start();
+        }
+        return threads;
+    }
+
+    private void awaitInFlight(Server server, int requests) throws InterruptedException {
+        while (server.inFlight() < requests)
+            Thread.sleep(10);
+    }
+
     private void connectSendReceive(int i) throws IOException {
         System.out.printf("Client %2d: connecting\n", i);
         Socket socket = new Socket("localhost", PORT);